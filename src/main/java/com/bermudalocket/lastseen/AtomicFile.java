@@ -0,0 +1,220 @@
+package com.bermudalocket.lastseen;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+
+// ----------------------------------------------------------------------------
+/**
+ * Replaces the contents of a text file in a way that survives a crash at any
+ * point, keeping the previous generation as a fallback.
+ *
+ * write() writes the new contents, followed by a trailer line of the form
+ * "# crc32: 0123abcd" holding the CRC-32 of everything before it, to
+ * file.tmp through a FileChannel, and syncs it. The current file, if any, is
+ * then renamed to file.bak and file.tmp is atomically renamed to file. The
+ * trailer is a comment, so the file remains valid YAML and readable by
+ * other tools.
+ *
+ * read() returns the contents of file if its checksum matches. If it does not
+ * (the file was truncated or corrupted), or if file is missing (the server
+ * stopped between the two renames), file.bak is used instead, with a
+ * warning. A non-empty file without a trailer, such as one written by an
+ * earlier version or edited by hand, is accepted as is. If no generation is
+ * intact, read() throws rather than returning empty contents.
+ */
+public class AtomicFile {
+    // ------------------------------------------------------------------------
+    /**
+     * Constructor.
+     *
+     * @param file the file.
+     */
+    public AtomicFile(File file) {
+        _file = file;
+        _backupFile = new File(file.getPath() + ".bak");
+        _tempFile = new File(file.getPath() + ".tmp");
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the file.
+     *
+     * @return the file.
+     */
+    public File getFile() {
+        return _file;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return true if the file or its previous generation exists and is not
+     * empty.
+     *
+     * @return true if there are contents to read.
+     */
+    public boolean exists() {
+        return _file.length() > 0 || _backupFile.length() > 0;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the contents of the newest generation that passes its checksum,
+     * without the trailer.
+     *
+     * @return the contents.
+     * @throws IOException if neither generation can be read intact.
+     */
+    public String read() throws IOException {
+        String problem;
+        if (_file.exists()) {
+            String contents = readVerified(_file);
+            if (contents != null) {
+                return contents;
+            }
+            problem = "fails its checksum";
+        } else {
+            problem = "is missing";
+        }
+
+        if (_backupFile.exists()) {
+            String contents = readVerified(_backupFile);
+            if (contents != null) {
+                LastSeen.PLUGIN.getLogger().warning(_file.getName() + " " + problem + "; using the previous version, " +
+                                                    _backupFile.getName() + ".");
+                return contents;
+            }
+        }
+        throw new IOException(_file.getName() + " " + problem + " and no intact previous version exists");
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Replace the contents of the file.
+     *
+     * @param contents the new contents.
+     * @throws IOException if the contents could not be written; the file is
+     *         then unaffected.
+     */
+    public void write(String contents) throws IOException {
+        if (!contents.isEmpty() && !contents.endsWith("\n")) {
+            contents += "\n";
+        }
+        byte[] data = contents.getBytes(StandardCharsets.UTF_8);
+        CRC32 crc = new CRC32();
+        crc.update(data, 0, data.length);
+        byte[] trailer = String.format("%s%08x\n", TRAILER_PREFIX, crc.getValue()).getBytes(StandardCharsets.UTF_8);
+
+        try (FileChannel channel = FileChannel.open(_tempFile.toPath(), StandardOpenOption.CREATE,
+                                                    StandardOpenOption.WRITE,
+                                                    StandardOpenOption.TRUNCATE_EXISTING)) {
+            ChannelIO.writeFully(channel, ByteBuffer.wrap(data));
+            ChannelIO.writeFully(channel, ByteBuffer.wrap(trailer));
+            channel.force(true);
+        }
+
+        if (_file.exists()) {
+            Files.move(_file.toPath(), _backupFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+        try {
+            Files.move(_tempFile.toPath(), _file.toPath(), StandardCopyOption.ATOMIC_MOVE,
+                       StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException ex) {
+            Files.move(_tempFile.toPath(), _file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+        ChannelIO.syncDirectory(_file.getAbsoluteFile().getParentFile());
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Rename both generations of the file, so that the previous generation is
+     * never left behind to be read as if it were current.
+     *
+     * The file is renamed to target and its previous generation, if any, to
+     * target.bak, replacing any existing files.
+     *
+     * @param target the new path of the file.
+     * @throws IOException if either file could not be renamed.
+     */
+    public void moveTo(File target) throws IOException {
+        if (_file.exists()) {
+            Files.move(_file.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+        if (_backupFile.exists()) {
+            Files.move(_backupFile.toPath(), new File(target.getPath() + ".bak").toPath(),
+                       StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Read a file and verify its trailer, if any.
+     *
+     * The checksum covers everything before the trailer line.
+     *
+     * @param file the file.
+     * @return the contents without the trailer, or null if the checksum does
+     *         not match or the file is empty.
+     * @throws IOException if the file cannot be read.
+     */
+    protected static String readVerified(File file) throws IOException {
+        byte[] data = Files.readAllBytes(file.toPath());
+        int end = data.length;
+        if (end > 0 && data[end - 1] == '\n') {
+            --end;
+        }
+        int lineStart = end;
+        while (lineStart > 0 && data[lineStart - 1] != '\n') {
+            --lineStart;
+        }
+        String lastLine = new String(data, lineStart, end - lineStart, StandardCharsets.UTF_8);
+        if (!lastLine.startsWith(TRAILER_PREFIX)) {
+            // Written by an earlier version or edited by hand. Since write()
+            // never modifies the file in place, only an empty file is
+            // assumed to be damaged.
+            return (data.length == 0) ? null : new String(data, StandardCharsets.UTF_8);
+        }
+
+        long expected;
+        try {
+            expected = Long.parseLong(lastLine.substring(TRAILER_PREFIX.length()).trim(), 16);
+        } catch (NumberFormatException ex) {
+            return null;
+        }
+        CRC32 crc = new CRC32();
+        crc.update(data, 0, lineStart);
+        if (crc.getValue() != expected) {
+            return null;
+        }
+        return new String(data, 0, lineStart, StandardCharsets.UTF_8);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * The start of the trailer line, which is followed by the CRC-32 in
+     * hexadecimal.
+     */
+    protected static final String TRAILER_PREFIX = "# crc32: ";
+
+    /**
+     * The file.
+     */
+    protected final File _file;
+
+    /**
+     * The previous generation of the file.
+     */
+    protected final File _backupFile;
+
+    /**
+     * The file to which new contents are written before being renamed.
+     */
+    protected final File _tempFile;
+}
@@ -0,0 +1,54 @@
+package com.bermudalocket.lastseen;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+// ----------------------------------------------------------------------------
+/**
+ * File I/O helpers shared by the journals, logs and snapshots.
+ */
+final class ChannelIO {
+    // ------------------------------------------------------------------------
+    /**
+     * Write the whole of the buffer to the channel.
+     *
+     * FileChannel.write() may write fewer bytes than remain in the buffer, so
+     * it is called until the buffer is drained.
+     *
+     * @param channel the channel.
+     * @param buffer the buffer.
+     * @throws IOException if the channel cannot be written.
+     */
+    static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Sync a directory, so that renames of files within it are durable.
+     *
+     * Not all platforms allow a directory to be opened; there, the renames are
+     * left to the file system.
+     *
+     * @param directory the directory.
+     */
+    static void syncDirectory(File directory) {
+        try (FileChannel channel = FileChannel.open(directory.toPath(), StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (IOException ex) {
+            // Not supported on this platform.
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Not instantiable.
+     */
+    private ChannelIO() {
+    }
+}
@@ -2,48 +2,363 @@ package com.bermudalocket.lastseen;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
 import java.util.concurrent.CancellationException;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ForkJoinPool;
-
-import org.bukkit.configuration.file.YamlConfiguration;
+import java.util.function.Function;
+import java.util.regex.Pattern;
 
 // ----------------------------------------------------------------------------
 /**
- * Loads and stores last seen time stamp in a YAML file.
+ * Loads and stores last seen time stamps, playtime totals and play sessions.
  * 
  * Last seen time stamps are stored as (long) milliseconds since epoch, per
- * System.currentTimeMillis().
+ * System.currentTimeMillis(), and playtime totals as milliseconds.
+ * 
+ * Each kind of value is held in a LongStore, which looks values up first in a
+ * LongIndex, keyed by player UUID, that holds every value set or loaded since
+ * the last compaction, and then in the memory-mapped SnapshotFile (if any)
+ * returned by its backend. Neither lookup boxes or allocates. The entries
+ * changed since the last save are tracked separately, and only those are
+ * passed to the StorageBackend, which is selected by the "storage.backend"
+ * configuration setting:
+ * 
+ * <ul>
+ * <li>"journal" (the default) appends fixed-size records to last-seen.journal
+ * and playtime.journal. When a journal grows too large, the LongIndex is
+ * merged with the current snapshot into a new one on the save thread, and the
+ * merged entries are dropped from the LongIndex. Since the snapshot is not
+ * read on startup, the time to load is proportional to the size of the
+ * journal.</li>
+ * <li>"yaml" rewrites last-seen.yml and playtime.yml, keyed by UUID, in full
+ * on every save. With "storage.yaml-shards" greater than 1, players are instead
+ * partitioned by UUID hash across that many files of each kind by a
+ * ShardedStorageBackend, and only the files containing changed players are
+ * rewritten.</li>
+ * <li>"sqlite" upserts the changes into the last_seen and playtime tables of
+ * lastseen.db, an embedded SQLite database, in one transaction per save.</li>
+ * </ul>
+ * 
+ * Earlier versions stored last-seen.yml keyed by player name. Once player
+ * names have been indexed, such a file (or, for the journal and SQLite, any
+ * last-seen.yml) is streamed into the LongStore by the LegacyYamlMigrator, as
+ * unsaved changes, and renamed to last-seen.yml.migrated once the next save
+ * has written them. With the "yaml" backend, the name-keyed file is first
+ * moved aside to last-seen.yml.legacy, so that it is never mistaken for the
+ * current layout.
+ * 
+ * A session starts when a player joins and ends when they quit. Ending a
+ * session adds its length to the player's playtime total and queues it for
+ * the SessionLog, sessions.log, to which each save appends the queued
+ * sessions in one write. The most recent sessions of each player are also
+ * kept, delta-encoded, in a LoginHistory for /seen -h &lt;name&gt;; the
+ * histories changed since the last save are appended to the HistoryJournal,
+ * history.journal, which is loaded in full in the background on startup.
+ * Sessions that end before then are held back and added once it is loaded.
  * 
- * YamlConfiguration is not thread safe, so therefore, no public methods of this
- * class are thread-safe. So clients of DataStorage should call these methods
- * from a single thread. But internally the code uses CompletableFuture<>s in a
- * thread-safe manner.
+ * Every time stamp loaded or set is also added to a TimeIndex, which orders
+ * players by time stamp for /recent and /inactive. Entries from the snapshot
+ * are added in the background after loading.
  * 
- * The file format is somewhat redundant; it's inherited from original design.
- * It would become reasonably efficient if a second datum were added. And by
- * keeping it we can use existing data files.
+ * Player names that changed since the last save are appended to the
+ * NameJournal, names.journal, by the same saves.
+ * 
+ * Unless disabled by "storage.wal.enabled", every changed time stamp and
+ * playtime total is also appended to a WriteAheadLog, which group-commits it
+ * to disk within "storage.wal.commit-interval-ms", so a crash between saves
+ * loses almost nothing. Each save rolls the log to a new segment before
+ * draining the changes and deletes the older segments once they are written.
+ * On startup, the remaining segments are replayed over the loaded values.
+ * 
+ * The LongStores are thread-safe, so getLastSeen(), setLastSeen() and
+ * getPlaytime() can be called from any thread and do not wait for saves.
+ * startSession() and endSession() must be called from the main thread. A
+ * save drains the changed entries it is about to write; anything set after
+ * that is left for the next save.
+ * 
+ * The remaining public methods are not thread-safe, so clients of DataStorage
+ * should call save(), saveAsync() and close() from a single thread. But
+ * internally the code uses CompletableFuture<>s in a thread-safe manner.
  */
 public class DataStorage {
     // ------------------------------------------------------------------------
     /**
      * Constructor.
+     * 
+     * The NameIndex is loaded from names.journal, if it exists. It is not
+     * populated from the server's offline players here, which can take
+     * several seconds; the plugin does that asynchronously and then calls
+     * migrateLegacyFile(), since name-keyed files need every name indexed.
+     * 
+     * @param names translates player names in name-keyed files to UUIDs.
      */
-    public DataStorage() {
-        _file = new File(LastSeen.PLUGIN.getDataFolder(), "last-seen.yml");
-        if (!_file.exists()) {
-            try {
-                _file.createNewFile();
-            } catch (IOException ex) {
-                LastSeen.PLUGIN.getLogger().severe("Cannot create storage: " + ex.getMessage());
+    public DataStorage(NameIndex names) {
+        File dataFolder = LastSeen.PLUGIN.getDataFolder();
+        dataFolder.mkdirs();
+        _names = names;
+        _nameJournal = new NameJournal(new File(dataFolder, "names.journal"));
+        try {
+            if (_nameJournal.exists()) {
+                long start = System.currentTimeMillis();
+                _nameJournal.load(names);
+                if (LastSeen.PLUGIN.isDebug()) {
+                    LastSeen.PLUGIN.getLogger().info("Loaded " + names.size() + " player names in " +
+                                                     (System.currentTimeMillis() - start) + "ms");
+                }
             }
+        } catch (Exception ex) {
+            LastSeen.PLUGIN.getLogger().severe("Cannot load player names: " + ex.getMessage());
+        }
+
+        _tickBudgetNanos = (long) (1e6 * LastSeen.PLUGIN.getConfig().getDouble("storage.save-tick-budget-ms", 1.0));
+        String backendName = LastSeen.PLUGIN.getConfig().getString("storage.backend", "journal").toLowerCase();
+        if (!backendName.equals("yaml") && !backendName.equals("sqlite") && !backendName.equals("journal")) {
+            LastSeen.PLUGIN.getLogger().warning("Unknown storage backend \"" + backendName + "\"; using journal.");
+            backendName = "journal";
+        }
+        _legacyFile = findLegacyFile(dataFolder, backendName.equals("yaml"));
+        _lastSeen = new LongStore("last seen time stamps", createBackend(backendName, dataFolder, "last-seen"));
+        _playtime = new LongStore("playtime totals", createBackend(backendName, dataFolder, "playtime"));
+        _sessionLog = new SessionLog(new File(dataFolder, "sessions.log"));
+        int historySize = LastSeen.PLUGIN.getConfig().getInt("history.size", 50);
+        _history = new LoginHistory(Math.max(0, Math.min(MAX_HISTORY_SIZE, historySize)));
+        _historyJournal = new HistoryJournal(new File(dataFolder, "history.journal"));
+
+        _lastSeen.load((msb, lsb, lastSeen) -> _timeIndex.add(msb, lsb, lastSeen));
+        _playtime.load(null);
+
+        if (LastSeen.PLUGIN.getConfig().getBoolean("storage.wal.enabled", true)) {
+            _wal = new WriteAheadLog(dataFolder,
+                                     LastSeen.PLUGIN.getConfig().getLong("storage.wal.commit-interval-ms", 200),
+                                     1024 * LastSeen.PLUGIN.getConfig().getInt("storage.wal.commit-kb", 64));
+            long start = System.currentTimeMillis();
+            int count = _wal.replay(this::replay);
+            if (count != 0) {
+                LastSeen.PLUGIN.getLogger().info("Recovered " + count + " changes from the write-ahead log in " +
+                                                 (System.currentTimeMillis() - start) + "ms.");
+            }
+            _wal.start();
+        }
+
+        // The login history and snapshot entries of the time index are only
+        // loaded in the background, so that enabling the plugin does not read
+        // either file in full. A journal that has outgrown its snapshot is
+        // compacted there too, after the snapshot has been read and the
+        // WriteAheadLog replayed.
+        SnapshotFile base = _lastSeen.getBase();
+        _ongoingSave = CompletableFuture.runAsync(() -> {
+            loadHistory();
+            if (base != null) {
+                base.forEach((msb, lsb, lastSeen) -> _timeIndex.add(msb, lsb, lastSeen));
+            }
+            _timeIndex.merge();
+            _timeIndex.setComplete();
+            compactIfNeeded(_lastSeen);
+            compactIfNeeded(_playtime);
+        }, _executor);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Create the backend for one kind of per-player value.
+     * 
+     * @param backendName "yaml", "sqlite" or "journal".
+     * @param dataFolder the folder containing the files.
+     * @param name the base name of the files, which is also the YAML key and
+     *        the SQLite table name.
+     * @return the backend.
+     */
+    protected static StorageBackend createBackend(String backendName, File dataFolder, String name) {
+        if (backendName.equals("yaml")) {
+            return createYamlBackend(dataFolder, name,
+                                     Math.max(1, LastSeen.PLUGIN.getConfig().getInt("storage.yaml-shards", 1)));
+        } else if (backendName.equals("sqlite")) {
+            return new SqliteStorageBackend(new File(dataFolder, "lastseen.db"), name);
+        } else {
+            return new JournalStorageBackend(dataFolder, name,
+                                             1024L * LastSeen.PLUGIN.getConfig().getLong("storage.compaction.min-journal-kb", 1024),
+                                             LastSeen.PLUGIN.getConfig().getDouble("storage.compaction.ratio", 0.25));
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Apply one record replayed from the WriteAheadLog, marking the value
+     * changed so that it is saved by the next save.
+     * 
+     * @param kind the kind of value.
+     * @param msb the most significant bits of the player's UUID.
+     * @param lsb the least significant bits of the player's UUID.
+     * @param value the value.
+     */
+    protected void replay(byte kind, long msb, long lsb, long value) {
+        UUID uuid = new UUID(msb, lsb);
+        if (kind == WriteAheadLog.LAST_SEEN) {
+            _lastSeen.set(uuid, value);
+            _timeIndex.add(msb, lsb, value);
+        } else if (kind == WriteAheadLog.PLAYTIME) {
+            _playtime.set(uuid, value);
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Create the YAML backend for one kind of per-player value.
+     * 
+     * A single shard is stored in name.yml, as in earlier versions; N shards
+     * are stored in name.&lt;i&gt;-of-&lt;N&gt;.yml. Files of any other layout
+     * are migrated into the current one by the ShardedStorageBackend.
+     * 
+     * @param dataFolder the folder containing the files.
+     * @param name the base name of the files, which is also the YAML key.
+     * @param shards the number of shards.
+     * @return the backend.
+     */
+    protected static StorageBackend createYamlBackend(File dataFolder, String name, int shards) {
+        File[] shardFiles = new File[shards];
+        if (shards == 1) {
+            shardFiles[0] = new File(dataFolder, name + ".yml");
+        } else {
+            for (int i = 0; i < shards; ++i) {
+                shardFiles[i] = new File(dataFolder, name + "." + i + "-of-" + shards + ".yml");
+            }
+        }
+
+        List<File> previousFiles = new ArrayList<>();
+        Pattern pattern = Pattern.compile(Pattern.quote(name) + "(\\.\\d+-of-\\d+)?\\.yml");
+        File[] files = dataFolder.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (pattern.matcher(file.getName()).matches() && file.length() > 0 &&
+                    !Arrays.asList(shardFiles).contains(file)) {
+                    previousFiles.add(file);
+                }
+            }
+        }
+
+        Function<File, StorageBackend> factory = file -> new YamlStorageBackend(file, name);
+        if (shards == 1 && previousFiles.isEmpty()) {
+            return factory.apply(shardFiles[0]);
+        }
+        return new ShardedStorageBackend(shardFiles, previousFiles, factory);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the last-seen.yml file to be migrated into the configured
+     * backend, or null if there is none.
+     * 
+     * With the "yaml" backend, only a name-keyed last-seen.yml needs
+     * migrating; it is first moved to last-seen.yml.legacy, where it stays
+     * until migrated, so that the backend starts from an empty file. With any
+     * other backend, any non-empty last-seen.yml is migrated.
+     * 
+     * @param dataFolder the folder containing the files.
+     * @param yaml true if the "yaml" backend is configured.
+     * @return the file to migrate, or null.
+     */
+    protected static File findLegacyFile(File dataFolder, boolean yaml) {
+        File yamlFile = new File(dataFolder, "last-seen.yml");
+        if (!yaml) {
+            return (yamlFile.length() > 0) ? yamlFile : null;
+        }
+
+        File legacyFile = new File(dataFolder, "last-seen.yml.legacy");
+        try {
+            if (!legacyFile.exists() && LegacyYamlMigrator.isNameKeyed(yamlFile)) {
+                new AtomicFile(yamlFile).moveTo(legacyFile);
+                LastSeen.PLUGIN.getLogger().info("Moved name-keyed " + yamlFile.getName() + " to " +
+                                                 legacyFile.getName() + " for migration.");
+            }
+        } catch (IOException ex) {
+            LastSeen.PLUGIN.getLogger().severe("Cannot move " + yamlFile.getName() + " aside: " + ex.getMessage());
+        }
+        return (legacyFile.length() > 0) ? legacyFile : null;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Merge the last-seen.yml file found on startup, if any, into the
+     * last-seen time stamps, as unsaved changes.
+     * 
+     * This must be called once the NameIndex is complete, and may be called
+     * from any thread; time stamps set concurrently are never overwritten by
+     * earlier ones. Once the migrated data has been verified, the file is
+     * recorded in _migratedFile, to be renamed to last-seen.yml.migrated by
+     * the first save that writes the changes, so that it is not migrated
+     * again. If the server stops before then, the migration is repeated in
+     * full on the next start; since records only ever increase time stamps,
+     * that is harmless.
+     */
+    public void migrateLegacyFile() {
+        File yamlFile = _legacyFile;
+        if (yamlFile == null) {
+            return;
         }
+        _legacyFile = null;
+        LastSeen.PLUGIN.getLogger().info("Migrating last seen data from " + yamlFile.getName() + ".");
         try {
-            _yaml = YamlConfiguration.loadConfiguration(_file);
+            LegacyYamlMigrator migrator = new LegacyYamlMigrator(yamlFile, _names);
+            migrator.migrate(this);
+            if (migrator.verify(this)) {
+                _migratedFile = yamlFile;
+            }
         } catch (Exception ex) {
-            LastSeen.PLUGIN.getLogger().severe("Cannot load storage: " + ex.getMessage());
-            _yaml = new YamlConfiguration();
+            LastSeen.PLUGIN.getLogger().severe("Cannot migrate " + yamlFile.getName() + ": " + ex.getMessage());
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Rename a migrated file to last-seen.yml.migrated, once the changes
+     * imported from it have been written.
+     * 
+     * @param yamlFile the migrated file.
+     */
+    protected void finishMigration(File yamlFile) {
+        File migratedFile = new File(yamlFile.getParentFile(), "last-seen.yml.migrated");
+        try {
+            Files.move(yamlFile.toPath(), migratedFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            _migratedFile = null;
+            LastSeen.PLUGIN.getLogger().info("Migration complete; renamed " + yamlFile.getName() + " to " +
+                                             migratedFile.getName() + ".");
+        } catch (IOException ex) {
+            LastSeen.PLUGIN.getLogger().severe("Cannot rename " + yamlFile.getName() + ": " + ex.getMessage());
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Save any unsaved changes and release resources.
+     * 
+     * This should be the last method called on this instance.
+     */
+    public void close() {
+        save();
+        awaitOngoingSave();
+        _executor.shutdown();
+        if (_wal != null) {
+            _wal.close();
+        }
+        try {
+            _lastSeen.close();
+            _playtime.close();
+            _sessionLog.close();
+            _historyJournal.close();
+            _nameJournal.close();
+        } catch (IOException ex) {
+            LastSeen.PLUGIN.getLogger().severe("Cannot close storage: " + ex.getMessage());
         }
     }
 
@@ -52,67 +367,314 @@ public class DataStorage {
      * Return the last-seen time stamp of the specified player, or 0 if not seen
      * before.
      * 
-     * @param playerName the player name.
+     * @param uuid the player's UUID.
      * @return the last-seen time stamp of the specified player, or 0 if not
      *         seen before.
      */
-    public long getLastSeen(String playerName) {
-        return _yaml.getLong(getKey(playerName, LAST_SEEN), 0);
+    public long getLastSeen(UUID uuid) {
+        return _lastSeen.get(uuid);
     }
 
     // ------------------------------------------------------------------------
     /**
      * Sets the last-seen time stamp of the specified player.
      *
-     * @param playerName the player name.
+     * @param uuid the player's UUID.
      * @param lastSeen the time stamp, as milliseconds since epoch.
      */
-    public void setLastSeen(String playerName, long lastSeen) {
-        awaitOngoingSave();
-        _yaml.set(getKey(playerName, LAST_SEEN), lastSeen);
-        _dirty = true;
+    public void setLastSeen(UUID uuid, long lastSeen) {
+        _lastSeen.set(uuid, lastSeen);
+        if (_wal != null) {
+            _wal.append(WriteAheadLog.LAST_SEEN, uuid, lastSeen);
+        }
+        _timeIndex.add(uuid.getMostSignificantBits(), uuid.getLeastSignificantBits(), lastSeen);
     }
 
     // ------------------------------------------------------------------------
     /**
-     * Return the YAML key for the specified player and purpose.
-     * 
-     * @param playerName the name of the player.
-     * @param subkey the sub-key of the player name indicating the purpose of
-     *        the value it stores; must include the leading '.'.
+     * Set the last-seen time stamp of every online player to the current
+     * time, so that a crash loses at most one heartbeat period of it.
+     *
+     * The players are added to the LongStore and the TimeIndex as one batch
+     * each, rather than by one setLastSeen() call per player.
+     *
+     * @param uuids the UUIDs of the online players.
+     * @param now the current time stamp.
      */
-    protected String getKey(String playerName, String subkey) {
-        return "players." + playerName.toLowerCase() + subkey;
+    public void heartbeat(UUID[] uuids, long now) {
+        long[] msbs = new long[uuids.length];
+        long[] lsbs = new long[uuids.length];
+        for (int i = 0; i < uuids.length; ++i) {
+            msbs[i] = uuids[i].getMostSignificantBits();
+            lsbs[i] = uuids[i].getLeastSignificantBits();
+        }
+        _lastSeen.setAll(msbs, lsbs, uuids, now);
+        if (_wal != null) {
+            _wal.appendAll(WriteAheadLog.LAST_SEEN, msbs, lsbs, uuids.length, now);
+        }
+        _timeIndex.addAll(msbs, lsbs, uuids.length, now);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Start a play session, setting the player's last-seen time stamp.
+     *
+     * @param uuid the player's UUID.
+     * @param time the time stamp when the player joined.
+     */
+    public void startSession(UUID uuid, long time) {
+        setLastSeen(uuid, time);
+        _sessionStarts.put(uuid, time);
     }
 
     // ------------------------------------------------------------------------
     /**
-     * Synchronously save the YAML storage.
+     * End a play session, setting the player's last-seen time stamp and
+     * adding the session's length to their playtime and the session to their
+     * login history.
+     *
+     * A player without a session in progress only has the last-seen time
+     * stamp set.
+     *
+     * @param uuid the player's UUID.
+     * @param time the time stamp when the player quit.
+     */
+    public void endSession(UUID uuid, long time) {
+        setLastSeen(uuid, time);
+        Long start = _sessionStarts.remove(uuid);
+        if (start != null && time > start) {
+            long playtime = _playtime.get(uuid) + time - start;
+            _playtime.set(uuid, playtime);
+            if (_wal != null) {
+                _wal.append(WriteAheadLog.PLAYTIME, uuid, playtime);
+            }
+            SessionLog.Session session = new SessionLog.Session(uuid, start, time);
+            _unsavedSessions.add(session);
+            synchronized (_pendingHistory) {
+                if (!_history.isComplete()) {
+                    _pendingHistory.add(session);
+                    return;
+                }
+            }
+            _history.add(uuid, start, time);
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the start time stamp of the specified player's session in
+     * progress, or 0 if they have none.
+     *
+     * @param uuid the player's UUID.
+     * @return the start time stamp, or 0.
+     */
+    public long getSessionStart(UUID uuid) {
+        Long start = _sessionStarts.get(uuid);
+        return (start != null) ? start : 0;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the total playtime of the specified player, including any
+     * session in progress.
+     *
+     * @param uuid the player's UUID.
+     * @param now the current time stamp.
+     * @return the total playtime in milliseconds.
+     */
+    public long getPlaytime(UUID uuid, long now) {
+        long playtime = _playtime.get(uuid);
+        Long start = _sessionStarts.get(uuid);
+        return (start != null && now > start) ? playtime + now - start : playtime;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the store of last-seen time stamps, for access to its change
+     * feed and counters.
+     *
+     * @return the store of last-seen time stamps.
+     */
+    public LongStore getLastSeenStore() {
+        return _lastSeen;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the store of playtime totals, for access to its change feed and
+     * counters.
+     *
+     * @return the store of playtime totals.
+     */
+    public LongStore getPlaytimeStore() {
+        return _playtime;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the most recent completed sessions of each player.
+     *
+     * @return the login history.
+     */
+    public LoginHistory getLoginHistory() {
+        return _history;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the index of players by last-seen time stamp.
+     *
+     * @return the index of players by last-seen time stamp.
+     */
+    public TimeIndex getTimeIndex() {
+        return _timeIndex;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Set the last-seen time stamp of the specified player, if it is later
+     * than the stored one, to be written by the next save.
+     *
+     * This is used by the LegacyYamlMigrator. The change is not logged to the
+     * WriteAheadLog, since the migrated file is kept until it is saved.
+     *
+     * @param uuid the player's UUID.
+     * @param lastSeen the time stamp, as milliseconds since epoch.
+     */
+    protected void importLastSeen(UUID uuid, long lastSeen) {
+        if (_lastSeen.raise(uuid, lastSeen)) {
+            _timeIndex.add(uuid.getMostSignificantBits(), uuid.getLeastSignificantBits(), lastSeen);
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Synchronously save changed values.
      * 
-     * Don't bother to save if the data is unchanged. If a previous asynchronous
-     * save is fully complete, then synchronously save. Otherwise, an async save
-     * is already in flight, so simply wait for that to complete.
+     * Wait for any asynchronous save that is already in flight, then save
+     * whatever changes remain on the current thread. Don't bother to save if
+     * the data is unchanged.
      * 
-     * We can be certain that changes will hit the disk. If the last-seen data
-     * was changed, setLastSeen() would wait for ongoing saves to complete.
+     * If a backend needs compaction after the save, that is started
+     * asynchronously, as are the merges of new names into the NameIndex and of
+     * new entries into the TimeIndex, as in saveAsync().
      */
     public void save() {
-        if (_dirty && !awaitOngoingSave()) {
-            saveFile();
+        awaitOngoingSave();
+        File migrated = _migratedFile;
+        long segment = (_wal != null) ? _wal.roll() : -1;
+        boolean mergeNames = _names.hasUnsaved();
+        if (mergeNames) {
+            writeNames(_names.drainUnsaved());
+        }
+        if (!_unsavedSessions.isEmpty()) {
+            writeSessions(drainSessions());
+        }
+        if (_history.hasUnsaved()) {
+            writeHistory(_history.drainUnsaved());
+        }
+        boolean compact = false;
+        boolean saved = true;
+        for (LongStore store : new LongStore[] { _lastSeen, _playtime }) {
+            if (store.hasChanges()) {
+                if (store.writeChanges(store.drainChanges())) {
+                    compact |= store.needsCompaction();
+                } else {
+                    saved = false;
+                    if (store == _lastSeen) {
+                        migrated = null;
+                    }
+                }
+            }
+        }
+        if (migrated != null) {
+            finishMigration(migrated);
+        }
+        if (saved && segment >= 0) {
+            _wal.deleteThrough(segment);
+        }
+        if (compact || mergeNames || _timeIndex.hasRecent() || _historyJournal.needsCompaction(_history)) {
+            _ongoingSave = CompletableFuture.runAsync(() -> {
+                if (mergeNames) {
+                    _names.merge();
+                }
+                if (_timeIndex.hasRecent()) {
+                    _timeIndex.merge();
+                }
+                compactIfNeeded(_lastSeen);
+                compactIfNeeded(_playtime);
+                compactHistoryIfNeeded();
+            }, _executor);
         }
     }
 
     // ------------------------------------------------------------------------
     /**
-     * Asynchronously save the YAML storage.
+     * Asynchronously save changed values.
      * 
      * If an asynchronous save is ongoing, then no new save is initiated; we
      * simply let the old one continue. A new save is only started if the
      * previous one has finished.
+     * 
+     * The only work done on the calling thread is to drain the changed
+     * entries, names, sessions and login histories into immutable copies,
+     * which costs O(changes). Serialisation, I/O, any subsequent compaction
+     * and the merge of new entries into the TimeIndex and of new names into
+     * the NameIndex happen on the save executor. The time spent on the calling
+     * thread is checked against the "storage.save-tick-budget-ms" setting.
      */
     public void saveAsync() {
-        if (isQuiescent()) {
-            _ongoingSave = CompletableFuture.runAsync(() -> saveFile(), _executor);
+        if (isQuiescent() && (_lastSeen.hasChanges() || _playtime.hasChanges() ||
+                              !_unsavedSessions.isEmpty() || _history.hasUnsaved() ||
+                              _names.hasUnsaved())) {
+            long start = System.nanoTime();
+            File migrated = _migratedFile;
+            long segment = (_wal != null) ? _wal.roll() : -1;
+            List<Map.Entry<UUID, String>> names = Collections.unmodifiableList(_names.drainUnsaved());
+            List<SessionLog.Session> sessions = Collections.unmodifiableList(drainSessions());
+            List<Map.Entry<UUID, byte[]>> histories = Collections.unmodifiableList(_history.drainUnsaved());
+            Map<UUID, Long> changes = Collections.unmodifiableMap(_lastSeen.drainChanges());
+            Map<UUID, Long> playtimes = Collections.unmodifiableMap(_playtime.drainChanges());
+            _ongoingSave = CompletableFuture.runAsync(() -> {
+                if (!names.isEmpty()) {
+                    writeNames(names);
+                    _names.merge();
+                }
+                if (!sessions.isEmpty()) {
+                    writeSessions(sessions);
+                }
+                if (!histories.isEmpty()) {
+                    writeHistory(histories);
+                    compactHistoryIfNeeded();
+                }
+                boolean saved = true;
+                if (!changes.isEmpty()) {
+                    saved &= writeAndCompact(_lastSeen, changes);
+                }
+                if (saved && migrated != null) {
+                    finishMigration(migrated);
+                }
+                if (!playtimes.isEmpty()) {
+                    saved &= writeAndCompact(_playtime, playtimes);
+                }
+                if (saved && segment >= 0) {
+                    _wal.deleteThrough(segment);
+                }
+                if (_timeIndex.hasRecent()) {
+                    _timeIndex.merge();
+                }
+            }, _executor);
+
+            long elapsed = System.nanoTime() - start;
+            if (elapsed > _tickBudgetNanos) {
+                LastSeen.PLUGIN.getLogger().warning(String.format("Starting a save of %d changes, %d sessions and %d names took %.3fms of tick time (budget %.3fms).",
+                                                                  changes.size() + playtimes.size(), sessions.size(), names.size(),
+                                                                  elapsed / 1e6, _tickBudgetNanos / 1e6));
+            } else if (LastSeen.PLUGIN.isDebug()) {
+                LastSeen.PLUGIN.getLogger().info(String.format("Starting a save of %d changes, %d sessions and %d names took %.3fms of tick time.",
+                                                               changes.size() + playtimes.size(), sessions.size(), names.size(),
+                                                               elapsed / 1e6));
+            }
         }
     }
 
@@ -162,39 +724,232 @@ public class DataStorage {
 
     // ------------------------------------------------------------------------
     /**
-     * Save the file on the current thread.
+     * Append drained player names to the NameJournal on the current thread.
+     * 
+     * If the write fails, the names are marked unsaved again.
+     * 
+     * @param names the names returned by NameIndex.drainUnsaved().
      */
-    protected void saveFile() {
+    protected void writeNames(List<Map.Entry<UUID, String>> names) {
         try {
-            long start = System.currentTimeMillis();
-            if (LastSeen.PLUGIN.isDebug()) {
-                LastSeen.PLUGIN.getLogger().info("Saving last seen data.");
+            _nameJournal.write(names, _names);
+        } catch (Exception ex) {
+            LastSeen.PLUGIN.getLogger().severe("Cannot save player names: " + ex.getMessage());
+            _names.restoreUnsaved(names);
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Append drained sessions to the SessionLog on the current thread.
+     * 
+     * If the write fails, the sessions are queued again.
+     * 
+     * @param sessions the sessions returned by drainSessions().
+     */
+    protected void writeSessions(List<SessionLog.Session> sessions) {
+        try {
+            _sessionLog.write(sessions);
+        } catch (Exception ex) {
+            LastSeen.PLUGIN.getLogger().severe("Cannot save play sessions: " + ex.getMessage());
+            _unsavedSessions.addAll(sessions);
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Load the HistoryJournal into the LoginHistory on the current thread,
+     * then add the sessions that ended while it was loading and mark the
+     * history complete.
+     *
+     * If the journal cannot be loaded, the failure is logged and the history
+     * starts empty.
+     */
+    protected void loadHistory() {
+        try {
+            if (_historyJournal.exists()) {
+                long start = System.currentTimeMillis();
+                _historyJournal.load(_history);
+                if (LastSeen.PLUGIN.isDebug()) {
+                    LastSeen.PLUGIN.getLogger().info("Loaded the login history of " + _history.size() + " players in " +
+                                                     (System.currentTimeMillis() - start) + "ms");
+                }
             }
-            _yaml.save(_file);
-            _dirty = false;
-            if (LastSeen.PLUGIN.isDebug()) {
-                LastSeen.PLUGIN.getLogger().info("Saving elapsed time: " + (System.currentTimeMillis() - start) + "ms");
+        } catch (Exception ex) {
+            LastSeen.PLUGIN.getLogger().severe("Cannot load login history: " + ex.getMessage());
+        }
+
+        synchronized (_pendingHistory) {
+            for (SessionLog.Session session : _pendingHistory) {
+                _history.add(session.uuid, session.start, session.end);
             }
+            _pendingHistory.clear();
+            _history.setComplete();
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Append drained login histories to the HistoryJournal on the current
+     * thread.
+     * 
+     * If the write fails, the players are marked unsaved again.
+     * 
+     * @param histories the histories returned by LoginHistory.drainUnsaved().
+     */
+    protected void writeHistory(List<Map.Entry<UUID, byte[]>> histories) {
+        try {
+            _historyJournal.write(histories);
         } catch (Exception ex) {
-            LastSeen.PLUGIN.getLogger().severe("Cannot save storage: " + ex.getMessage());
+            LastSeen.PLUGIN.getLogger().severe("Cannot save login history: " + ex.getMessage());
+            _history.restoreUnsaved(histories);
         }
     }
 
     // ------------------------------------------------------------------------
     /**
-     * The subkey parameter to getKey() for last-seen time stamps.
+     * Rewrite the HistoryJournal on the current thread, if it needs it.
      */
-    protected static final String LAST_SEEN = ".last-seen";
+    protected void compactHistoryIfNeeded() {
+        if (_historyJournal.needsCompaction(_history)) {
+            try {
+                _historyJournal.rewrite(_history);
+            } catch (Exception ex) {
+                LastSeen.PLUGIN.getLogger().severe("Cannot compact login history: " + ex.getMessage());
+            }
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Remove and return all sessions not yet written to the SessionLog.
+     * 
+     * @return the removed sessions, oldest first.
+     */
+    protected List<SessionLog.Session> drainSessions() {
+        ArrayList<SessionLog.Session> sessions = new ArrayList<>();
+        SessionLog.Session session;
+        while ((session = _unsavedSessions.poll()) != null) {
+            sessions.add(session);
+        }
+        return sessions;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Write drained changes to a LongStore's backend on the current thread,
+     * then compact it if it needs it.
+     * 
+     * @param store the store.
+     * @param changes the changes returned by store.drainChanges().
+     * @return true if the changes were written successfully.
+     */
+    protected boolean writeAndCompact(LongStore store, Map<UUID, Long> changes) {
+        if (store.writeChanges(changes)) {
+            compactIfNeeded(store);
+            return true;
+        }
+        return false;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Compact a LongStore's backend on the current thread, if it needs it.
+     * 
+     * @param store the store.
+     */
+    protected void compactIfNeeded(LongStore store) {
+        if (store.needsCompaction()) {
+            store.compact();
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * The upper limit of the "history.size" setting. The encoded history of
+     * one player must fit in a HistoryJournal record.
+     */
+    protected static final int MAX_HISTORY_SIZE = 1000;
+
+    /**
+     * Maps player names to UUIDs.
+     */
+    protected NameIndex _names;
+
+    /**
+     * Persists _names.
+     */
+    protected NameJournal _nameJournal;
+
+    /**
+     * Last-seen time stamps.
+     */
+    protected LongStore _lastSeen;
+
+    /**
+     * Playtime totals, excluding sessions in progress.
+     */
+    protected LongStore _playtime;
+
+    /**
+     * Index of players by last-seen time stamp, for range queries. Entries
+     * are current if they match _lastSeen.
+     */
+    protected TimeIndex _timeIndex = new TimeIndex((msb, lsb, time) -> _lastSeen.get(msb, lsb) == time);
+
+    /**
+     * Persists completed sessions.
+     */
+    protected SessionLog _sessionLog;
+
+    /**
+     * The start time stamps of the sessions in progress, by player UUID.
+     */
+    protected ConcurrentHashMap<UUID, Long> _sessionStarts = new ConcurrentHashMap<>();
+
+    /**
+     * Completed sessions not yet written to _sessionLog, oldest first.
+     */
+    protected ConcurrentLinkedQueue<SessionLog.Session> _unsavedSessions = new ConcurrentLinkedQueue<>();
 
     /**
-     * The YAML file.
+     * The most recent completed sessions of each player.
      */
-    protected YamlConfiguration _yaml;
+    protected LoginHistory _history;
 
     /**
-     * The path to the YAML file.
+     * Persists _history.
      */
-    protected File _file;
+    protected HistoryJournal _historyJournal;
+
+    /**
+     * Sessions that ended before _history was loaded, oldest first, to be
+     * added to it once it is. Guarded by itself.
+     */
+    protected final ArrayList<SessionLog.Session> _pendingHistory = new ArrayList<>();
+
+    /**
+     * The last-seen.yml file to be migrated by migrateLegacyFile(), or null if
+     * there is none.
+     */
+    protected volatile File _legacyFile;
+
+    /**
+     * The file migrated by migrateLegacyFile(), to be renamed once a save has
+     * written the imported time stamps, or null if there is none.
+     */
+    protected volatile File _migratedFile;
+
+    /**
+     * Logs changed values between saves, or null if disabled.
+     */
+    protected WriteAheadLog _wal;
+
+    /**
+     * The maximum time, in nanoseconds, that saveAsync() should spend on the
+     * calling thread before a warning is logged.
+     */
+    protected long _tickBudgetNanos;
 
     /**
      * A CompletableFuture<> representing the currently ongoing asynchronous
@@ -210,9 +965,4 @@ public class DataStorage {
      */
     protected ForkJoinPool _executor = new ForkJoinPool(1);
 
-    /**
-     * True if the last seen data has changed. Declared volatile to ensure the
-     * main thread sees the latest value when an async save mutates it.
-     */
-    protected volatile boolean _dirty;
 }
@@ -0,0 +1,71 @@
+package com.bermudalocket.lastseen;
+
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+
+// ----------------------------------------------------------------------------
+/**
+ * Formats time stamps as absolute dates, in a configurable pattern and time
+ * zone.
+ *
+ * This replaces a shared Calendar and SimpleDateFormat, neither of which is
+ * thread-safe. The underlying DateTimeFormatter is immutable, so a single
+ * instance can be used from any thread without locking. Each thread reuses
+ * its own StringBuilder, so formatting a time stamp allocates only the
+ * Instant, the zoned date-time and the resulting String.
+ */
+public class DateFormatter {
+    // ------------------------------------------------------------------------
+    /**
+     * Constructor.
+     *
+     * @param pattern the DateTimeFormatter pattern.
+     * @param zone the time zone in which dates are shown.
+     * @throws IllegalArgumentException if the pattern is invalid.
+     */
+    public DateFormatter(String pattern, ZoneId zone) {
+        _formatter = DateTimeFormatter.ofPattern(pattern).withZone(zone);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the time zone in which dates are shown.
+     *
+     * @return the time zone.
+     */
+    public ZoneId getZone() {
+        return _formatter.getZone();
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Format a time stamp.
+     *
+     * @param time the time stamp, as milliseconds since epoch.
+     * @return the formatted date.
+     */
+    public String format(long time) {
+        StringBuilder builder = BUILDER.get();
+        builder.setLength(0);
+        _formatter.formatTo(Instant.ofEpochMilli(time), builder);
+        return builder.toString();
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * The default pattern, equivalent to the SimpleDateFormat pattern used by
+     * earlier versions.
+     */
+    public static final String DEFAULT_PATTERN = "E MMM d y hh:mm:ss a";
+
+    /**
+     * A per-thread buffer reused by format().
+     */
+    protected static final ThreadLocal<StringBuilder> BUILDER = ThreadLocal.withInitial(() -> new StringBuilder(64));
+
+    /**
+     * The immutable formatter, with its zone set.
+     */
+    protected final DateTimeFormatter _formatter;
+}
@@ -0,0 +1,296 @@
+package com.bermudalocket.lastseen;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+// ----------------------------------------------------------------------------
+/**
+ * Persists the LoginHistory as an append-only journal.
+ *
+ * The file starts with a HEADER_SIZE byte header (MAGIC, VERSION) followed by
+ * variable length records:
+ *
+ * <ul>
+ * <li>8 bytes: the most significant bits of the player's UUID.</li>
+ * <li>8 bytes: the least significant bits of the player's UUID.</li>
+ * <li>2 bytes: the length of the encoded sessions, unsigned.</li>
+ * <li>The player's encoded sessions, as described in LoginHistory.</li>
+ * </ul>
+ *
+ * Each save appends the whole encoded history of every player who finished a
+ * session since the previous save; the last record of each player wins on
+ * load. Once the file is more than COMPACTION_RATIO times the size of the
+ * live histories (and at least MIN_COMPACTION_BYTES), it is rewritten in full
+ * by rewrite().
+ *
+ * If the server dies part way through an append, the file may end in a
+ * partial record. That record is discarded and the file truncated on load.
+ */
+public class HistoryJournal {
+    // ------------------------------------------------------------------------
+    /**
+     * Constructor.
+     *
+     * @param file the journal file.
+     */
+    public HistoryJournal(File file) {
+        _file = file;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return true if the journal file exists.
+     *
+     * @return true if the journal file exists.
+     */
+    public boolean exists() {
+        return _file.exists();
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Read all records into the history, without marking them unsaved.
+     *
+     * @param history the history to populate.
+     * @throws IOException if the file cannot be read.
+     */
+    public void load(LoginHistory history) throws IOException {
+        try (FileChannel channel = FileChannel.open(_file.toPath(), StandardOpenOption.READ,
+                                                    StandardOpenOption.WRITE)) {
+            if (channel.size() == 0) {
+                return;
+            }
+            ByteBuffer buffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+            buffer.limit(HEADER_SIZE);
+            while (buffer.hasRemaining() && channel.read(buffer) > 0) {
+            }
+            buffer.flip();
+            if (buffer.remaining() != HEADER_SIZE || buffer.getInt() != MAGIC) {
+                throw new IOException(_file.getName() + " is not a login history journal");
+            }
+            int version = buffer.getInt();
+            if (version != VERSION) {
+                throw new IOException(_file.getName() + " has unsupported version " + version);
+            }
+
+            long valid = HEADER_SIZE;
+            buffer.clear();
+            while (channel.read(buffer) > 0) {
+                buffer.flip();
+                while (buffer.remaining() >= RECORD_HEADER_SIZE &&
+                       buffer.remaining() >= RECORD_HEADER_SIZE + (buffer.getShort(buffer.position() + 16) & 0xFFFF)) {
+                    UUID uuid = new UUID(buffer.getLong(), buffer.getLong());
+                    byte[] sessions = new byte[buffer.getShort() & 0xFFFF];
+                    buffer.get(sessions);
+                    history.load(uuid, sessions);
+                    valid += RECORD_HEADER_SIZE + sessions.length;
+                }
+                buffer.compact();
+            }
+
+            if (channel.size() != valid) {
+                LastSeen.PLUGIN.getLogger().warning("Discarding partial record at the end of " + _file.getName() + ".");
+                channel.truncate(valid);
+            }
+            _size = valid;
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Append the specified histories to the journal.
+     *
+     * @param changes (UUID, encoded sessions) pairs.
+     * @throws IOException if the records could not be written.
+     */
+    public void write(List<Map.Entry<UUID, byte[]>> changes) throws IOException {
+        if (_channel == null) {
+            open(_file);
+        }
+
+        int size = 0;
+        for (Map.Entry<UUID, byte[]> change : changes) {
+            size += RECORD_HEADER_SIZE + change.getValue().length;
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(size);
+        for (Map.Entry<UUID, byte[]> change : changes) {
+            putRecord(buffer, change.getKey(), change.getValue());
+        }
+        buffer.flip();
+        ChannelIO.writeFully(_channel, buffer);
+        _channel.force(false);
+        _size += size;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return true if the journal has grown enough relative to the live
+     * histories that it should be rewritten.
+     *
+     * @param history the history.
+     * @return true if rewrite() should be called.
+     */
+    public boolean needsCompaction(LoginHistory history) {
+        long live = history.getEncodedBytes() + (long) RECORD_HEADER_SIZE * history.size();
+        return _size >= MIN_COMPACTION_BYTES && _size > COMPACTION_RATIO * live;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Replace the file with the current contents of the history.
+     *
+     * The records are written to a temporary file, which is synced and then
+     * atomically renamed over the journal.
+     *
+     * @param history the history.
+     * @throws IOException if the file could not be written; the journal is
+     *         then unaffected.
+     */
+    public void rewrite(LoginHistory history) throws IOException {
+        long start = System.currentTimeMillis();
+        long oldSize = _size;
+        close();
+        File tempFile = new File(_file.getPath() + ".tmp");
+        Files.deleteIfExists(tempFile.toPath());
+        open(tempFile);
+        try {
+            ByteBuffer buffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+            IOException[] error = new IOException[1];
+            history.forEach((uuid, sessions) -> {
+                try {
+                    if (buffer.remaining() < RECORD_HEADER_SIZE + sessions.length) {
+                        buffer.flip();
+                        ChannelIO.writeFully(_channel, buffer);
+                        buffer.clear();
+                    }
+                    putRecord(buffer, uuid, sessions);
+                    _size += RECORD_HEADER_SIZE + sessions.length;
+                } catch (IOException ex) {
+                    error[0] = ex;
+                }
+            });
+            if (error[0] != null) {
+                throw error[0];
+            }
+            buffer.flip();
+            ChannelIO.writeFully(_channel, buffer);
+            _channel.force(true);
+        } finally {
+            close();
+        }
+        Files.move(tempFile.toPath(), _file.toPath(),
+                   StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+
+        if (LastSeen.PLUGIN.isDebug()) {
+            LastSeen.PLUGIN.getLogger().info("Compacted " + _file.getName() + " from " + oldSize + " to " + _size +
+                                             " bytes in " + (System.currentTimeMillis() - start) + "ms");
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Close the file, if open.
+     *
+     * @throws IOException if the file could not be closed cleanly.
+     */
+    public void close() throws IOException {
+        if (_channel != null) {
+            _channel.close();
+            _channel = null;
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Open a file for appending, writing the header if it is empty, and set
+     * _size to its size.
+     *
+     * @param file the file.
+     * @throws IOException if the file could not be opened.
+     */
+    protected void open(File file) throws IOException {
+        _channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        if (_channel.size() == 0) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            header.putInt(MAGIC).putInt(VERSION).flip();
+            ChannelIO.writeFully(_channel, header);
+        }
+        _size = _channel.size();
+        _channel.position(_size);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Encode one record into the buffer.
+     *
+     * @param buffer the buffer, with enough space remaining.
+     * @param uuid the player's UUID.
+     * @param sessions the encoded sessions.
+     */
+    protected static void putRecord(ByteBuffer buffer, UUID uuid, byte[] sessions) {
+        buffer.putLong(uuid.getMostSignificantBits()).putLong(uuid.getLeastSignificantBits())
+              .putShort((short) sessions.length).put(sessions);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Identifies the file as a login history journal: "LSH" followed by a
+     * zero.
+     */
+    protected static final int MAGIC = 0x4C534800;
+
+    /**
+     * The file format version.
+     */
+    protected static final int VERSION = 1;
+
+    /**
+     * Size of the file header in bytes.
+     */
+    protected static final int HEADER_SIZE = 8;
+
+    /**
+     * Size of the fixed part of a record in bytes.
+     */
+    protected static final int RECORD_HEADER_SIZE = 18;
+
+    /**
+     * Size of the buffer used to read and rewrite the file. This is larger
+     * than the largest possible record.
+     */
+    protected static final int READ_BUFFER_SIZE = 256 * 1024;
+
+    /**
+     * The journal is never compacted while smaller than this.
+     */
+    protected static final long MIN_COMPACTION_BYTES = 1024 * 1024;
+
+    /**
+     * The journal is compacted once it is this many times the size of the
+     * live histories.
+     */
+    protected static final int COMPACTION_RATIO = 2;
+
+    /**
+     * The journal file.
+     */
+    protected File _file;
+
+    /**
+     * The channel used to append records, opened on the first write.
+     */
+    protected FileChannel _channel;
+
+    /**
+     * The size of the journal file in bytes, once loaded or opened.
+     */
+    protected long _size;
+}
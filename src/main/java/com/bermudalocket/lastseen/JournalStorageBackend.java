@@ -0,0 +1,387 @@
+package com.bermudalocket.lastseen;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.UUID;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+// ----------------------------------------------------------------------------
+/**
+ * Stores last-seen time stamps (or other per-player values, such as playtime
+ * totals) as a memory-mapped SnapshotFile plus an append-only journal of
+ * changes since the snapshot was taken.
+ *
+ * The journal starts with a HEADER_SIZE byte header (MAGIC, VERSION,
+ * generation) followed by records of RECORD_SIZE bytes:
+ *
+ * <ul>
+ * <li>8 bytes: the most significant bits of the player's UUID.</li>
+ * <li>8 bytes: the least significant bits of the player's UUID.</li>
+ * <li>8 bytes: the last-seen time stamp.</li>
+ * </ul>
+ *
+ * A player can appear many times in the journal; on load, later records
+ * supersede earlier ones, and journal records supersede the snapshot. A save
+ * only appends the records that changed since the last save, so its cost is
+ * proportional to the number of changes rather than the number of players
+ * ever seen.
+ *
+ * Only the journal is read on load. The snapshot is mapped and handed to
+ * DataStorage to be queried in place, so loading takes time proportional to
+ * the length of the journal, not the number of players.
+ *
+ * Since the journal grows with every save, it is periodically compacted: the
+ * snapshot and the journalled changes are merged into a temporary file, which
+ * is synced and then atomically renamed to name.generation.snapshot, with a
+ * generation one greater than before. Once the directory has been synced,
+ * so that the rename is durable, the journal is emptied. Older
+ * snapshots are then deleted, if the platform allows deletion of a mapped
+ * file; otherwise they are deleted on a later attempt. A journal whose
+ * generation is older than the latest snapshot's was already folded into it
+ * (the server stopped between the rename and the truncation) and is ignored on
+ * load.
+ *
+ * If the server dies part way through an append, the journal may end in a
+ * partial record. That record is discarded and the file truncated on load.
+ */
+public class JournalStorageBackend implements StorageBackend {
+    // ------------------------------------------------------------------------
+    /**
+     * Constructor.
+     *
+     * @param folder the folder containing the files.
+     * @param name the base name of the files.
+     * @param compactionMinBytes the journal size, in bytes, below which the
+     *        journal is never compacted.
+     * @param compactionRatio compact when the number of records in the journal
+     *        exceeds this multiple of the number of live entries.
+     */
+    public JournalStorageBackend(File folder, String name, long compactionMinBytes, double compactionRatio) {
+        _folder = folder;
+        _name = name;
+        _journalFile = new File(folder, name + ".journal");
+        _snapshotPattern = Pattern.compile(Pattern.quote(name) + "\\.(\\d+)\\.snapshot");
+        _compactionMinBytes = compactionMinBytes;
+        _compactionRatio = compactionRatio;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * @see StorageBackend#exists()
+     */
+    @Override
+    public boolean exists() {
+        return _journalFile.exists() || findSnapshotGeneration() >= 0;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * @see StorageBackend#load(LongIndex.EntryVisitor)
+     */
+    @Override
+    public SnapshotFile load(LongIndex.EntryVisitor visitor) throws IOException {
+        long snapshotGeneration = findSnapshotGeneration();
+        if (snapshotGeneration >= 0) {
+            _snapshot = SnapshotFile.open(getSnapshotFile(snapshotGeneration));
+            _generation = _snapshot.getGeneration();
+            deleteOldSnapshots();
+        }
+
+        if (_journalFile.exists() && readRecords(_journalFile, _generation, visitor) < _generation) {
+            // Already folded into the snapshot. Start afresh.
+            Files.delete(_journalFile.toPath());
+        }
+        return _snapshot;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * @see StorageBackend#write(Map)
+     */
+    @Override
+    public void write(Map<UUID, Long> changes) throws IOException {
+        if (_channel == null) {
+            _channel = FileChannel.open(_journalFile.toPath(), StandardOpenOption.CREATE,
+                                        StandardOpenOption.WRITE);
+            if (_channel.size() == 0) {
+                writeHeader(_channel, _generation);
+            }
+            _channel.position(_channel.size());
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocate(changes.size() * RECORD_SIZE);
+        for (Map.Entry<UUID, Long> entry : changes.entrySet()) {
+            UUID uuid = entry.getKey();
+            buffer.putLong(uuid.getMostSignificantBits()).putLong(uuid.getLeastSignificantBits())
+                  .putLong(entry.getValue());
+        }
+        buffer.flip();
+        ChannelIO.writeFully(_channel, buffer);
+        _channel.force(false);
+        _journalRecords += changes.size();
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * @see StorageBackend#needsCompaction(int)
+     */
+    @Override
+    public boolean needsCompaction(int liveEntries) {
+        return _journalRecords * RECORD_SIZE >= _compactionMinBytes &&
+               _journalRecords > _compactionRatio * liveEntries;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * @see StorageBackend#compact(LongIndex)
+     */
+    @Override
+    public SnapshotFile compact(LongIndex changes) throws IOException {
+        long start = System.currentTimeMillis();
+        long generation = _generation + 1;
+        File snapshotFile = getSnapshotFile(generation);
+        File tempFile = new File(snapshotFile.getPath() + ".tmp");
+        long written = SnapshotFile.write(tempFile, generation, _snapshot, changes);
+        Files.move(tempFile.toPath(), snapshotFile.toPath(),
+                   StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        // The rename must be durable before the journal is truncated, or a
+        // power loss could keep the truncation but lose the new snapshot.
+        ChannelIO.syncDirectory(_folder);
+        _snapshot = SnapshotFile.open(snapshotFile);
+
+        // The snapshot is now authoritative. Start a new, empty journal.
+        long journalRecords = _journalRecords;
+        _generation = generation;
+        close();
+        _channel = FileChannel.open(_journalFile.toPath(), StandardOpenOption.CREATE,
+                                    StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        writeHeader(_channel, _generation);
+        _channel.force(false);
+        _journalRecords = 0;
+
+        deleteOldSnapshots();
+
+        if (LastSeen.PLUGIN.isDebug()) {
+            LastSeen.PLUGIN.getLogger().info("Compacted " + journalRecords + " journal records into " +
+                                             written + " snapshot records in " +
+                                             (System.currentTimeMillis() - start) + "ms");
+        }
+        return _snapshot;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * @see StorageBackend#close()
+     */
+    @Override
+    public void close() throws IOException {
+        if (_channel != null) {
+            _channel.close();
+            _channel = null;
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the snapshot file of the specified generation.
+     *
+     * @param generation the generation.
+     * @return the file.
+     */
+    protected File getSnapshotFile(long generation) {
+        return new File(_folder, _name + "." + generation + ".snapshot");
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the generation of the newest snapshot file, or -1 if there are
+     * none.
+     *
+     * @return the generation, or -1.
+     */
+    protected long findSnapshotGeneration() {
+        long newest = -1;
+        String[] fileNames = _folder.list();
+        if (fileNames != null) {
+            for (String fileName : fileNames) {
+                Matcher matcher = _snapshotPattern.matcher(fileName);
+                if (matcher.matches()) {
+                    newest = Math.max(newest, Long.parseLong(matcher.group(1)));
+                }
+            }
+        }
+        return newest;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Delete all snapshot files older than the current generation.
+     *
+     * Failures are ignored; on some platforms, a file that is still mapped
+     * cannot be deleted, in which case it is deleted on a later attempt.
+     */
+    protected void deleteOldSnapshots() {
+        String[] fileNames = _folder.list();
+        if (fileNames != null) {
+            for (String fileName : fileNames) {
+                Matcher matcher = _snapshotPattern.matcher(fileName);
+                if (matcher.matches() && Long.parseLong(matcher.group(1)) < _generation) {
+                    new File(_folder, fileName).delete();
+                }
+            }
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Read all records of the journal and pass them to the visitor.
+     *
+     * Any partial record at the end of the file is discarded.
+     *
+     * @param file the journal file.
+     * @param minGeneration if the file's generation is less than this, its
+     *        records are not visited.
+     * @param visitor receives the records.
+     * @return the generation of the file.
+     */
+    protected long readRecords(File file, long minGeneration, LongIndex.EntryVisitor visitor) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ,
+                                                    StandardOpenOption.WRITE)) {
+            if (channel.size() == 0) {
+                return minGeneration;
+            }
+            ByteBuffer buffer = ByteBuffer.allocate(READ_BUFFER_RECORDS * RECORD_SIZE);
+            buffer.limit(HEADER_SIZE);
+            while (buffer.hasRemaining() && channel.read(buffer) > 0) {
+            }
+            buffer.flip();
+            if (buffer.remaining() != HEADER_SIZE || buffer.getInt() != MAGIC) {
+                throw new IOException(file.getName() + " is not a last-seen journal");
+            }
+            int version = buffer.getInt();
+            if (version != VERSION) {
+                throw new IOException(file.getName() + " has unsupported version " + version);
+            }
+            long generation = buffer.getLong();
+            if (generation < minGeneration) {
+                LastSeen.PLUGIN.getLogger().info("Ignoring " + file.getName() + "; it is older than the snapshot.");
+                return generation;
+            }
+
+            long valid = HEADER_SIZE;
+            buffer.clear();
+            while (channel.read(buffer) > 0) {
+                buffer.flip();
+                while (buffer.remaining() >= RECORD_SIZE) {
+                    visitor.visit(buffer.getLong(), buffer.getLong(), buffer.getLong());
+                    valid += RECORD_SIZE;
+                    ++_journalRecords;
+                }
+                buffer.compact();
+            }
+
+            if (channel.size() != valid) {
+                LastSeen.PLUGIN.getLogger().warning("Discarding partial record at the end of " + file.getName() + ".");
+                channel.truncate(valid);
+            }
+            return generation;
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Write a journal header at the current position of the channel.
+     *
+     * @param channel the channel.
+     * @param generation the generation number.
+     */
+    protected static void writeHeader(FileChannel channel, long generation) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.putInt(MAGIC).putInt(VERSION).putLong(generation).flip();
+        ChannelIO.writeFully(channel, header);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Identifies the file as a last-seen journal: "LSJ" followed by a zero.
+     */
+    protected static final int MAGIC = 0x4C534A00;
+
+    /**
+     * The file format version.
+     */
+    protected static final int VERSION = 1;
+
+    /**
+     * Size of the file header in bytes.
+     */
+    protected static final int HEADER_SIZE = 16;
+
+    /**
+     * Size of one record in bytes.
+     */
+    protected static final int RECORD_SIZE = 24;
+
+    /**
+     * Number of records read from the file per read() call.
+     */
+    protected static final int READ_BUFFER_RECORDS = 4096;
+
+    /**
+     * The folder containing the files.
+     */
+    protected File _folder;
+
+    /**
+     * The base name of the files.
+     */
+    protected String _name;
+
+    /**
+     * The journal file.
+     */
+    protected File _journalFile;
+
+    /**
+     * Matches the names of snapshot files, capturing the generation.
+     */
+    protected Pattern _snapshotPattern;
+
+    /**
+     * The journal size, in bytes, below which the journal is never compacted.
+     */
+    protected long _compactionMinBytes;
+
+    /**
+     * Compact when the number of journal records exceeds this multiple of the
+     * number of live entries.
+     */
+    protected double _compactionRatio;
+
+    /**
+     * The current snapshot, or null if there is none yet.
+     */
+    protected SnapshotFile _snapshot;
+
+    /**
+     * The generation of the current snapshot; incremented by compaction.
+     */
+    protected long _generation;
+
+    /**
+     * The number of records in the journal.
+     */
+    protected long _journalRecords;
+
+    /**
+     * The channel used to append records, opened on the first write.
+     */
+    protected FileChannel _channel;
+}
@@ -1,23 +1,34 @@
 package com.bermudalocket.lastseen;
 
-import java.text.SimpleDateFormat;
-import java.util.Calendar;
-import java.util.HashMap;
+import java.io.File;
+import java.time.DateTimeException;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
 
 import org.bukkit.Bukkit;
 import org.bukkit.ChatColor;
-import org.bukkit.OfflinePlayer;
 import org.bukkit.command.Command;
 import org.bukkit.command.CommandSender;
 import org.bukkit.command.TabExecutor;
+import org.bukkit.entity.Player;
 import org.bukkit.event.EventHandler;
 import org.bukkit.event.Listener;
 import org.bukkit.event.player.PlayerJoinEvent;
 import org.bukkit.event.player.PlayerQuitEvent;
+import org.bukkit.plugin.PluginDescriptionFile;
 import org.bukkit.plugin.java.JavaPlugin;
-import org.ocpsoft.prettytime.Duration;
-import org.ocpsoft.prettytime.PrettyTime;
+import org.bukkit.plugin.java.JavaPluginLoader;
+import org.bukkit.scoreboard.Team;
 
 // ----------------------------------------------------------------------------
 /**
@@ -31,6 +42,26 @@ public class LastSeen extends JavaPlugin implements Listener, TabExecutor {
      */
     public static LastSeen PLUGIN;
 
+    // ------------------------------------------------------------------------
+    /**
+     * Constructor used by the server.
+     */
+    public LastSeen() {
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Constructor for unit tests, which run outside of a server.
+     *
+     * @param loader the plugin loader.
+     * @param description the plugin description.
+     * @param dataFolder the folder holding the plugin's files.
+     * @param file the plugin JAR.
+     */
+    protected LastSeen(JavaPluginLoader loader, PluginDescriptionFile description, File dataFolder, File file) {
+        super(loader, description, dataFolder, file);
+    }
+
     // ------------------------------------------------------------------------
     /**
      * Return true if debug messages are logged.
@@ -50,24 +81,42 @@ public class LastSeen extends JavaPlugin implements Listener, TabExecutor {
         PLUGIN = this;
         saveDefaultConfig();
         _debug = getConfig().getBoolean("debug", false);
+        _asyncCommands = getConfig().getBoolean("commands.async", true);
+        _dateFormatter = loadDateFormatter();
+        _relativeTimeFormatter = new RelativeTimeFormatter(getConfig().getBoolean("date.exact-relative", false));
+        if (_asyncCommands) {
+            _commandExecutor = new ForkJoinPool(1);
+        }
 
         long start = System.currentTimeMillis();
-        _storage = new DataStorage();
+        _storage = new DataStorage(_names);
         if (isDebug()) {
-            getLogger().info("YAML loading elapsed time: " + (System.currentTimeMillis() - start) + "ms");
+            getLogger().info("Storage loading elapsed time: " + (System.currentTimeMillis() - start) + "ms");
         }
-        start = System.currentTimeMillis();
-        for (OfflinePlayer player : Bukkit.getOfflinePlayers()) {
-            _playerCache.put(player.getName().toLowerCase(), player);
-        }
-        if (isDebug()) {
-            getLogger().info("Player caching elapsed time: " + (System.currentTimeMillis() - start) + "ms");
+
+        // Pick up players who joined while the plugin was not installed, then
+        // resolve the names in any file from an earlier version. Until then,
+        // lookups of unknown names report that indexing is in progress.
+        Bukkit.getScheduler().runTaskAsynchronously(this, () -> {
+            _names.addOfflinePlayers();
+            _storage.migrateLegacyFile();
+        });
+
+        // Players already online after a reload start a new session now.
+        long now = System.currentTimeMillis();
+        for (Player player : Bukkit.getOnlinePlayers()) {
+            _storage.startSession(player.getUniqueId(), now);
         }
 
         Bukkit.getPluginManager().registerEvents(this, this);
+        long savePeriod = TICKS_PER_SECOND * Math.max(1, getConfig().getLong("storage.max-unsaved-seconds", 600));
         Bukkit.getScheduler().scheduleSyncRepeatingTask(this, () -> {
-            _storage.save();
-        }, PERIOD, PERIOD);
+            _storage.saveAsync();
+        }, savePeriod, savePeriod);
+        long heartbeatPeriod = TICKS_PER_SECOND * getConfig().getLong("storage.heartbeat-seconds", 60);
+        if (heartbeatPeriod > 0) {
+            Bukkit.getScheduler().scheduleSyncRepeatingTask(this, this::heartbeat, heartbeatPeriod, heartbeatPeriod);
+        }
     }
 
     // ------------------------------------------------------------------------
@@ -77,31 +126,55 @@ public class LastSeen extends JavaPlugin implements Listener, TabExecutor {
     @Override
     public void onDisable() {
         Bukkit.getScheduler().cancelTasks(this);
-        _storage.save();
+        long now = System.currentTimeMillis();
+        for (Player player : Bukkit.getOnlinePlayers()) {
+            _storage.endSession(player.getUniqueId(), now);
+        }
+        if (_commandExecutor != null) {
+            _commandExecutor.shutdown();
+        }
+        _storage.close();
     }
 
     // ------------------------------------------------------------------------
     /**
-     * Records the timestamp when a player logs in.
+     * Refresh the last-seen time stamps of all online players in one batch.
+     *
+     * Without this, a crash, which never fires PlayerQuitEvent, would leave
+     * each online player's time stamp at the time they joined.
+     */
+    private void heartbeat() {
+        Collection<? extends Player> players = Bukkit.getOnlinePlayers();
+        if (!players.isEmpty()) {
+            UUID[] uuids = new UUID[players.size()];
+            int i = 0;
+            for (Player player : players) {
+                uuids[i++] = player.getUniqueId();
+            }
+            _storage.heartbeat(uuids, System.currentTimeMillis());
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Records the timestamp when a player logs in, starting a session.
      */
     @EventHandler
     public void onPlayerJoin(PlayerJoinEvent e) {
-        _storage.setLastSeen(e.getPlayer().getName(), System.currentTimeMillis());
-
-        // Add brand new players to _playerCache.
-        if (!e.getPlayer().hasPlayedBefore()) {
-            String lowerName = e.getPlayer().getName().toLowerCase();
-            _playerCache.put(lowerName, Bukkit.getOfflinePlayer(lowerName));
-        }
+        Player player = e.getPlayer();
+        long now = System.currentTimeMillis();
+        long firstPlayed = player.getFirstPlayed();
+        _names.add(player.getUniqueId(), player.getName(), (firstPlayed != 0) ? firstPlayed : now);
+        _storage.startSession(player.getUniqueId(), now);
     }
 
     // ------------------------------------------------------------------------
     /**
-     * Records the timestamp when a player logs out.
+     * Records the timestamp when a player logs out, ending their session.
      */
     @EventHandler
     public void onPlayerQuit(PlayerQuitEvent e) {
-        _storage.setLastSeen(e.getPlayer().getName(), System.currentTimeMillis());
+        _storage.endSession(e.getPlayer().getUniqueId(), System.currentTimeMillis());
     }
 
     // ------------------------------------------------------------------------
@@ -122,77 +195,490 @@ public class LastSeen extends JavaPlugin implements Listener, TabExecutor {
             return true;
         }
 
-        if (args.length != 1) {
-            error(sender, "Usage: /" + commandName + " <player-name>");
+        if (commandName.equals("recent") || commandName.equals("inactive")) {
+            listPlayers(sender, commandName, args);
             return true;
         }
 
-        String playerName = args[0];
-        OfflinePlayer player = Bukkit.getPlayer(playerName);
-        if (player == null) {
-            player = getOfflinePlayerByName(playerName);
+        if (args.length == 0) {
+            error(sender, "Usage: /" + commandName + " <player-name>|team:<team-name> ...");
+            return true;
         }
-        if (player == null) {
-            msg(sender, playerName + " has never been seen before.");
+
+        if (commandName.equals("seen") && args[0].equalsIgnoreCase(HISTORY_FLAG)) {
+            showHistory(sender, args);
             return true;
         }
 
-        if (commandName.equals("seen")) {
-            if (player.isOnline()) {
-                msg(sender, player.getName() + " is online now!");
-            } else {
-                long lastSeen = _storage.getLastSeen(playerName);
-                if (lastSeen == 0) {
-                    msg(sender, "Either that player doesn't exist or they haven't been online in a while.");
-                } else {
-                    msg(sender, player.getName() + " was last seen on " + longToDate(lastSeen) +
-                                "\n(" + longToRelativeDate(lastSeen) + ")");
+        // Teams and Bukkit's player lookup are only safe on the main thread.
+        Map<String, String> playerNames = new LinkedHashMap<>();
+        for (String arg : args) {
+            if (arg.regionMatches(true, 0, TEAM_PREFIX, 0, TEAM_PREFIX.length())) {
+                String teamName = arg.substring(TEAM_PREFIX.length());
+                Team team = Bukkit.getScoreboardManager().getMainScoreboard().getTeam(teamName);
+                if (team == null) {
+                    error(sender, "There is no team named \"" + teamName + "\".");
+                    return true;
                 }
+                for (String entry : team.getEntries()) {
+                    playerNames.putIfAbsent(entry.toLowerCase(), entry);
+                }
+            } else {
+                playerNames.putIfAbsent(arg.toLowerCase(), arg);
+            }
+        }
+        if (playerNames.isEmpty()) {
+            error(sender, "No players to look up.");
+            return true;
+        }
+        if (playerNames.size() > MAX_BATCH_NAMES) {
+            error(sender, "At most " + MAX_BATCH_NAMES + " players can be looked up at once.");
+            return true;
+        }
+
+        String[] names = playerNames.values().toArray(new String[playerNames.size()]);
+        UUID[] onlineUuids = new UUID[names.length];
+        String[] onlineNames = new String[names.length];
+        for (int i = 0; i < names.length; ++i) {
+            Player onlinePlayer = Bukkit.getPlayer(names[i]);
+            if (onlinePlayer != null) {
+                onlineUuids[i] = onlinePlayer.getUniqueId();
+                onlineNames[i] = onlinePlayer.getName();
             }
-        } else if (commandName.equals("firstseen")) {
-            long time = player.getFirstPlayed();
-            msg(sender, player.getName() + " first played on " + longToDate(time) +
-                        "\n(" + longToRelativeDate(time) + ")");
         }
 
+        execute(sender, commandName, args, () -> lookUpAll(commandName, names, onlineUuids, onlineNames));
         return true;
     }
 
     // ------------------------------------------------------------------------
     /**
-     * Returns an instance of OfflinePlayer if one can be found in the Bukkit
-     * list of offline players which matches the given playerName String.
-     * Otherwise, returns null.
+     * Run the part of a command that composes its reply, on _commandExecutor
+     * if "commands.async" is enabled, and then run the returned final step on
+     * the main thread.
+     *
+     * If the task fails on _commandExecutor, the error is logged and the
+     * command sender is told on the main thread, so that the command does not
+     * silently go unanswered.
+     *
+     * @param sender the command sender.
+     * @param commandName the lower case command name.
+     * @param args the command arguments, for error messages.
+     * @param task composes the reply and returns the final step, which sends
+     *        it to the command sender.
+     */
+    private void execute(CommandSender sender, String commandName, String[] args,
+                         Supplier<Consumer<CommandSender>> task) {
+        if (_asyncCommands) {
+            CompletableFuture.supplyAsync(task, _commandExecutor)
+            .whenComplete((reply, ex) -> {
+                if (ex != null) {
+                    getLogger().severe("Error in /" + commandName + " " + String.join(" ", args) + ": " +
+                                       ex.getMessage());
+                    if (isEnabled()) {
+                        Bukkit.getScheduler().runTask(this, () -> error(sender, "An internal error occurred " +
+                                                                                "while running that command."));
+                    }
+                } else if (isEnabled()) {
+                    Bukkit.getScheduler().runTask(this, () -> reply.accept(sender));
+                }
+            });
+        } else {
+            task.get().accept(sender);
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Handle /recent and /inactive, which list a page of the players last
+     * seen less than, or at least, a specified time ago.
+     *
+     * /recent lists the most recently seen players first; /inactive lists the
+     * players who have been absent longest first.
+     *
+     * @param sender the command sender.
+     * @param commandName the lower case command name.
+     * @param args the command arguments: the duration and optional page.
+     */
+    private void listPlayers(CommandSender sender, String commandName, String[] args) {
+        long duration;
+        try {
+            duration = (args.length == 1 || args.length == 2) ? parseDuration(args[0]) : -1;
+        } catch (ArithmeticException ex) {
+            error(sender, "The duration " + args[0] + " is too long.");
+            return;
+        }
+        int page = 1;
+        if (args.length == 2) {
+            try {
+                page = Integer.parseInt(args[1]);
+            } catch (NumberFormatException ex) {
+                page = 0;
+            }
+        }
+        if (duration < 0 || page < 1) {
+            error(sender, "Usage: /" + commandName + " <duration> [<page>], e.g. /" + commandName + " 1d12h 2");
+            return;
+        }
+        if (page > MAX_PAGE) {
+            error(sender, "There is no page " + page + ".");
+            return;
+        }
+
+        TimeIndex timeIndex = _storage.getTimeIndex();
+        if (!timeIndex.isComplete()) {
+            error(sender, "Last seen times are still being indexed. Try again shortly.");
+            return;
+        }
+
+        boolean recent = commandName.equals("recent");
+        int pageNumber = page;
+        execute(sender, commandName, args, () -> {
+            long cutoff = System.currentTimeMillis() - duration;
+            List<Map.Entry<UUID, Long>> entries = recent
+                ? timeIndex.find(cutoff, Long.MAX_VALUE, true, (pageNumber - 1) * PAGE_SIZE, PAGE_SIZE + 1)
+                : timeIndex.find(Long.MIN_VALUE, cutoff, false, (pageNumber - 1) * PAGE_SIZE, PAGE_SIZE + 1);
+            String description = (recent ? "seen in the last " : "not seen for ") + args[0];
+            if (entries.isEmpty()) {
+                String reply = (pageNumber == 1) ? "No players " + description + "." : "There is no page " + pageNumber + ".";
+                return recipient -> msg(recipient, reply);
+            }
+
+            StringBuilder reply = new StringBuilder();
+            reply.append("Players ").append(description).append(" (page ").append(pageNumber).append("):");
+            int count = Math.min(PAGE_SIZE, entries.size());
+            for (int i = 0; i < count; ++i) {
+                Map.Entry<UUID, Long> entry = entries.get(i);
+                String name = _names.getName(entry.getKey());
+                reply.append('\n').append((name != null) ? name : entry.getKey().toString())
+                .append(" - ").append(longToRelativeDate(entry.getValue()));
+            }
+            if (entries.size() > PAGE_SIZE) {
+                reply.append("\nUse /").append(commandName).append(' ').append(args[0]).append(' ')
+                .append(pageNumber + 1).append(" for the next page.");
+            }
+            String text = reply.toString();
+            return recipient -> msg(recipient, text);
+        });
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Handle /seen -h <name>, which lists a page of the player's most
+     * recent sessions, newest first, including any session in progress.
+     *
+     * @param sender the command sender.
+     * @param args the command arguments: "-h", the player name and the
+     *        optional page.
+     */
+    private void showHistory(CommandSender sender, String[] args) {
+        int page = 1;
+        if (args.length == 3) {
+            try {
+                page = Integer.parseInt(args[2]);
+            } catch (NumberFormatException ex) {
+                page = 0;
+            }
+        }
+        if (args.length < 2 || args.length > 3 || page < 1) {
+            error(sender, "Usage: /seen " + HISTORY_FLAG + " <player-name> [<page>]");
+            return;
+        }
+        if (page > MAX_PAGE) {
+            error(sender, "There is no page " + page + ".");
+            return;
+        }
+
+        Player onlinePlayer = Bukkit.getPlayer(args[1]);
+        UUID uuid = (onlinePlayer != null) ? onlinePlayer.getUniqueId() : _names.getUUID(args[1]);
+        if (uuid == null) {
+            error(sender, args[1] + " has never been seen before.");
+            return;
+        }
+        String name = (onlinePlayer != null) ? onlinePlayer.getName() : _names.getName(uuid);
+        long sessionStart = (onlinePlayer != null) ? _storage.getSessionStart(uuid) : 0;
+
+        LoginHistory history = _storage.getLoginHistory();
+        if (!history.isComplete()) {
+            error(sender, "The login history is still loading. Try again shortly.");
+            return;
+        }
+
+        int pageNumber = page;
+        execute(sender, "seen", args, () -> {
+            long now = System.currentTimeMillis();
+            long[] sessions = history.getSessions(uuid);
+            int current = (sessionStart != 0) ? 1 : 0;
+            int total = current + sessions.length / 2;
+            int first = (pageNumber - 1) * PAGE_SIZE;
+            if (total == 0 || first >= total) {
+                String reply = (pageNumber == 1) ? "No sessions recorded for " + name + "."
+                                                 : "There is no page " + pageNumber + ".";
+                return recipient -> msg(recipient, reply);
+            }
+
+            StringBuilder reply = new StringBuilder();
+            reply.append("Sessions of ").append(name).append(" (page ").append(pageNumber).append("):");
+            int last = Math.min(total, first + PAGE_SIZE);
+            for (int i = first; i < last; ++i) {
+                if (i < current) {
+                    reply.append('\n').append(longToDate(sessionStart)).append(" - online now, for ")
+                    .append(RelativeTimeFormatter.formatDuration(now - sessionStart));
+                } else {
+                    long start = sessions[2 * (i - current)];
+                    long end = sessions[2 * (i - current) + 1];
+                    reply.append('\n').append(longToDate(start)).append(" - for ")
+                    .append(RelativeTimeFormatter.formatDuration(end - start));
+                }
+            }
+            if (last < total) {
+                reply.append("\nUse /seen ").append(HISTORY_FLAG).append(' ').append(args[1]).append(' ')
+                .append(pageNumber + 1).append(" for the next page.");
+            }
+            String text = reply.toString();
+            return recipient -> msg(recipient, text);
+        });
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Look up all of the players named in a /seen, /firstseen or /playtime
+     * command and compose a single reply, with one line per player.
+     *
+     * When "commands.async" is enabled, this runs on _commandExecutor, so it
+     * does not call the Bukkit API. Instead, it returns the final step, which
+     * must run on the main thread: sending the reply, after checking whether
+     * the players have since come online.
+     *
+     * @param commandName the lower case command name.
+     * @param playerNames the player names, without duplicates.
+     * @param onlineUuids the UUID of the online player matching each name, or
+     *        null if none.
+     * @param onlineNames the name of each of those online players, or null.
+     * @return the final step, which sends the reply to the command sender.
+     */
+    private Consumer<CommandSender> lookUpAll(String commandName, String[] playerNames,
+                                              UUID[] onlineUuids, String[] onlineNames) {
+        boolean compact = (playerNames.length > 1);
+        List<Supplier<String>> lines = new ArrayList<>(playerNames.length);
+        for (int i = 0; i < playerNames.length; ++i) {
+            lines.add(lookUp(commandName, playerNames[i], onlineUuids[i], onlineNames[i], compact));
+        }
+        return sender -> {
+            StringBuilder reply = new StringBuilder();
+            for (Supplier<String> line : lines) {
+                if (reply.length() != 0) {
+                    reply.append('\n');
+                }
+                reply.append(line.get());
+            }
+            sender.sendMessage(reply.toString());
+        };
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Look up one player named in a /seen, /firstseen or /playtime command and
+     * compose that player's part of the reply.
+     *
+     * Like lookUpAll(), this does not call the Bukkit API, but returns the
+     * final step, which must run on the main thread.
      *
-     * Bukkit.getOfflinepPlayer(String) has a couple of quirks that make it
-     * unsuitable for this purpose. Firstly, it will always return non-null for
-     * any player name whether the corresponding account exists or not.
-     * Secondly, it may issue a blocking web request to get the UUID for a given
-     * name.
+     * @param commandName the lower case command name.
+     * @param playerName the name argument.
+     * @param onlineUuid the UUID of the online player matching playerName, or
+     *        null if none.
+     * @param onlineName the name of that online player, or null.
+     * @param compact if true, keep the reply to a single line.
+     * @return the final step, which returns the colorised reply.
+     */
+    private Supplier<String> lookUp(String commandName, String playerName, UUID onlineUuid, String onlineName,
+                                    boolean compact) {
+        UUID uuid = (onlineUuid != null) ? onlineUuid : _names.getUUID(playerName);
+        if (uuid == null) {
+            if (_names.isComplete()) {
+                List<String> suggestions = _names.suggest(playerName, MAX_SUGGESTION_DISTANCE, MAX_SUGGESTIONS);
+                String reply = ChatColor.GOLD + playerName + " has never been seen before." +
+                               (suggestions.isEmpty() ? "" : " Did you mean " + String.join(", ", suggestions) + "?");
+                return () -> reply;
+            } else {
+                String reply = ChatColor.RED + "Player names are still being indexed. If " + playerName +
+                               " has not played recently, try again shortly.";
+                return () -> reply;
+            }
+        }
+
+        String name = (onlineName != null) ? onlineName : _names.getName(uuid);
+        String separator = compact ? " (" : "\n(";
+        if (commandName.equals("playtime")) {
+            String reply = ChatColor.GOLD + name + " has played for " +
+                           RelativeTimeFormatter.formatDuration(_storage.getPlaytime(uuid, System.currentTimeMillis())) +
+                           ".";
+            return () -> reply;
+        } else if (commandName.equals("seen")) {
+            long lastSeen = _storage.getLastSeen(uuid);
+            String reply = ChatColor.GOLD + ((lastSeen == 0)
+                ? (compact ? name + " has not been online in a while."
+                           : "Either that player doesn't exist or they haven't been online in a while.")
+                : name + " was last seen on " + longToDate(lastSeen) + separator + longToRelativeDate(lastSeen) + ")");
+            return () -> {
+                if (onlineUuid != null || Bukkit.getPlayer(uuid) != null) {
+                    return ChatColor.GOLD + name + " is online now!";
+                } else {
+                    return reply;
+                }
+            };
+        } else {
+            long time = _names.getFirstSeen(uuid);
+            if (time == 0) {
+                // Rare: ask the server, which must be done on the main thread.
+                return () -> {
+                    long firstSeen = getFirstSeen(uuid);
+                    return ChatColor.GOLD + name + " first played on " + longToDate(firstSeen) +
+                           separator + longToRelativeDate(firstSeen) + ")";
+                };
+            }
+            String reply = ChatColor.GOLD + name + " first played on " + longToDate(time) +
+                           separator + longToRelativeDate(time) + ")";
+            return () -> reply;
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Complete the player name arguments of /seen, /firstseen and /playtime
+     * from all known names, not just those of online players.
      * 
-     * Iterating over an entire collection of ~3500 OfflinePlayers takes about
-     * 40ms on the test lappy, which is an appreciable chunk of a tick, so
-     * instead we simply cache with _playerCache.
+     * @see TabExecutor#onTabComplete(CommandSender, Command, String, String[])
+     */
+    @Override
+    public List<String> onTabComplete(CommandSender sender, Command command, String alias, String[] args) {
+        String commandName = command.getName().toLowerCase();
+        if (args.length != 0 &&
+            (commandName.equals("seen") || commandName.equals("firstseen") || commandName.equals("playtime"))) {
+            String arg = args[args.length - 1];
+            if (commandName.equals("seen") && args[0].equalsIgnoreCase(HISTORY_FLAG) && args.length != 2) {
+                // Only the player name of /seen -h <name> [<page>] is completed.
+                return Collections.emptyList();
+            }
+            if (arg.regionMatches(true, 0, TEAM_PREFIX, 0, TEAM_PREFIX.length())) {
+                String prefix = arg.substring(TEAM_PREFIX.length());
+                List<String> completions = new ArrayList<>();
+                for (Team team : Bukkit.getScoreboardManager().getMainScoreboard().getTeams()) {
+                    if (team.getName().regionMatches(true, 0, prefix, 0, prefix.length())) {
+                        completions.add(TEAM_PREFIX + team.getName());
+                    }
+                }
+                Collections.sort(completions, String.CASE_INSENSITIVE_ORDER);
+                return completions;
+            }
+            return _names.complete(arg, MAX_COMPLETIONS);
+        }
+        return Collections.emptyList();
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Returns the time stamp when the player with the given UUID first played.
+     *
+     * The time stamp is normally taken from _names. Only if that is not known,
+     * e.g. for a player whose first-played time the server did not report
+     * when they were indexed, is the server's OfflinePlayer materialised to
+     * ask it.
+     *
+     * Player names are never resolved with Bukkit.getOfflinePlayer(String),
+     * which always returns non-null for any player name whether the
+     * corresponding account exists or not, and may issue a blocking web
+     * request to get the UUID for a given name.
      * 
      * @see https://hub.spigotmc.org/javadocs/spigot/org/bukkit/Bukkit.html#getOfflinePlayer-java.lang.String-
      *
-     * @param playerName the name of the player being queried.
+     * @param uuid the player's UUID.
+     * @return the first-played time stamp.
      */
-    private OfflinePlayer getOfflinePlayerByName(String playerName) {
-        return _playerCache.get(playerName.toLowerCase());
+    private long getFirstSeen(UUID uuid) {
+        long firstSeen = _names.getFirstSeen(uuid);
+        if (firstSeen == 0) {
+            firstSeen = Bukkit.getOfflinePlayer(uuid).getFirstPlayed();
+            String name = _names.getName(uuid);
+            if (firstSeen != 0 && name != null) {
+                _names.add(uuid, name, firstSeen);
+            }
+        }
+        return firstSeen;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Parse a duration consisting of one or more numbers, each followed by a
+     * unit: s (seconds), m (minutes), h (hours), d (days) or w (weeks), e.g.
+     * "1d12h".
+     *
+     * @param text the duration.
+     * @return the duration in milliseconds, or -1 if it is invalid.
+     * @throws ArithmeticException if the duration is too long to represent.
+     */
+    private static long parseDuration(String text) {
+        long total = 0;
+        long number = -1;
+        for (int i = 0; i < text.length(); ++i) {
+            char c = text.charAt(i);
+            if (c >= '0' && c <= '9') {
+                number = Math.max(number, 0) * 10 + (c - '0');
+                if (number > Integer.MAX_VALUE) {
+                    return -1;
+                }
+            } else {
+                int unit = DURATION_UNITS.indexOf(Character.toLowerCase(c));
+                if (unit < 0 || number < 0) {
+                    return -1;
+                }
+                total = Math.addExact(total, Math.multiplyExact(number, DURATION_UNIT_MILLIS[unit]));
+                number = -1;
+            }
+        }
+        return (number < 0 && !text.isEmpty()) ? total : -1;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Create the DateFormatter described by the "date.format" and
+     * "date.time-zone" settings, falling back to the defaults if either is
+     * invalid.
+     *
+     * @return the DateFormatter.
+     */
+    private DateFormatter loadDateFormatter() {
+        String pattern = getConfig().getString("date.format", DateFormatter.DEFAULT_PATTERN);
+        String zoneName = getConfig().getString("date.time-zone", "");
+        ZoneId zone = ZoneId.systemDefault();
+        if (!zoneName.isEmpty()) {
+            try {
+                zone = ZoneId.of(zoneName);
+            } catch (DateTimeException ex) {
+                getLogger().warning("Invalid date.time-zone \"" + zoneName + "\"; using " + zone + ".");
+            }
+        }
+        try {
+            return new DateFormatter(pattern, zone);
+        } catch (IllegalArgumentException ex) {
+            getLogger().warning("Invalid date.format \"" + pattern + "\": " + ex.getMessage());
+            return new DateFormatter(DateFormatter.DEFAULT_PATTERN, zone);
+        }
     }
 
     // ------------------------------------------------------------------------
     /**
      * Turns the given timestamp into a string following the form described by
-     * DATE_FORMAT.
+     * the "date.format" setting, in the "date.time-zone" time zone.
+     *
+     * This is thread-safe.
      *
      * @param time the timestamp.
-     * @return a string following the form described by DATE_FORMAT.
+     * @return the formatted date.
      */
-    private static String longToDate(Long time) {
-        CALENDAR.setTimeInMillis(time);
-        return DATE_FORMAT.format(CALENDAR.getTime());
+    private String longToDate(long time) {
+        return _dateFormatter.format(time);
     }
 
     // ------------------------------------------------------------------------
@@ -200,13 +686,13 @@ public class LastSeen extends JavaPlugin implements Listener, TabExecutor {
      * Turns the given timestamp into a string describing the relative date in
      * English to the current time now.
      *
+     * This is thread-safe.
+     *
      * @param time the timestamp.
      * @return a string describing the relative date.
      */
-    private static String longToRelativeDate(Long time) {
-        CALENDAR.setTimeInMillis(time);
-        List<Duration> durations = PRETTY_TIME_FORMAT.calculatePreciseDuration(CALENDAR.getTime());
-        return PRETTY_TIME_FORMAT.format(durations);
+    private String longToRelativeDate(long time) {
+        return _relativeTimeFormatter.format(time);
     }
 
     // ------------------------------------------------------------------------
@@ -233,41 +719,105 @@ public class LastSeen extends JavaPlugin implements Listener, TabExecutor {
 
     // ------------------------------------------------------------------------
     /**
-     * Period in ticks of repeating task that initiates an async save.
+     * Server ticks per second, for converting configured periods.
+     */
+    private static final long TICKS_PER_SECOND = 20;
+
+    /**
+     * Maximum number of player names offered by tab completion.
+     */
+    private static final int MAX_COMPLETIONS = 50;
+
+    /**
+     * Number of players listed per page by /recent and /inactive.
+     */
+    private static final int PAGE_SIZE = 10;
+
+    /**
+     * The highest page number of /recent, /inactive and /seen -h whose
+     * entries can be indexed by an int.
+     */
+    private static final int MAX_PAGE = Integer.MAX_VALUE / PAGE_SIZE;
+
+    /**
+     * Unit suffixes accepted by parseDuration().
+     */
+    private static final String DURATION_UNITS = "smhdw";
+
+    /**
+     * Milliseconds per unit in DURATION_UNITS.
+     */
+    private static final long[] DURATION_UNIT_MILLIS = { 1000L, 60 * 1000L, 60 * 60 * 1000L, 24 * 60 * 60 * 1000L,
+                                                         7 * 24 * 60 * 60 * 1000L };
+
+    /**
+     * Prefix of a /seen or /firstseen argument that selects all members of a
+     * scoreboard team.
+     */
+    private static final String TEAM_PREFIX = "team:";
+
+    /**
+     * The first argument of /seen that requests a player's login history.
+     * Unlike a trailing keyword, it cannot be mistaken for a player name,
+     * since names never start with '-'.
      */
-    private static final int PERIOD = 10 * 60 * 20;
+    private static final String HISTORY_FLAG = "-h";
 
     /**
-     * Calendar object used for converting timestamps.
+     * Maximum number of players looked up by one /seen or /firstseen command.
      */
-    private static final Calendar CALENDAR = Calendar.getInstance();
+    private static final int MAX_BATCH_NAMES = 100;
 
     /**
-     * SimpleDateFormat instance used to convert a timestamp to a date string.
+     * Maximum number of similar names suggested when a name is not found.
      */
-    private static final SimpleDateFormat DATE_FORMAT = new SimpleDateFormat("E MMM d y hh:mm:ss a");
+    private static final int MAX_SUGGESTIONS = 3;
 
     /**
-     * PrettyTime instance used to convert a timestamp to a relative date
-     * string.
+     * Maximum edit distance between a name that was not found and the names
+     * suggested in its place.
      */
-    private static final PrettyTime PRETTY_TIME_FORMAT = new PrettyTime();
+    private static final int MAX_SUGGESTION_DISTANCE = 2;
 
     /**
-     * Persistent YAML storage.
+     * Converts timestamps to date strings.
+     */
+    private DateFormatter _dateFormatter;
+
+    /**
+     * Converts timestamps to relative date strings.
+     */
+    private RelativeTimeFormatter _relativeTimeFormatter;
+
+    /**
+     * Persistent last-seen storage.
      */
     private DataStorage _storage;
 
     /**
-     * Cache the mapping from lowercase player name to OfflinePlayer instance
-     * rather than performing a linear search on getOfflinePlayers(), which
-     * takes about 40ms for ~3500 players on the lappy.
+     * Maps player names to UUIDs, rather than performing a linear search on
+     * getOfflinePlayers(), which takes about 40ms for ~3500 players on the
+     * lappy. Loaded from names.journal and refreshed in the background.
      */
-    private final HashMap<String, OfflinePlayer> _playerCache = new HashMap<>();
+    private final NameIndex _names = new NameIndex();
 
     /**
      * Debug setting from the config, enables debug messages.
      */
     private boolean _debug;
 
+    /**
+     * If true, /seen and /firstseen look up and format their replies on
+     * _commandExecutor, and only send them on the main thread.
+     */
+    private boolean _asyncCommands;
+
+    /**
+     * Runs command lookups when _asyncCommands is true; otherwise null.
+     *
+     * A non-default fork-join pool, for the same reason as DataStorage's.
+     * Lookups take microseconds, so one thread suffices.
+     */
+    private ForkJoinPool _commandExecutor;
+
 }
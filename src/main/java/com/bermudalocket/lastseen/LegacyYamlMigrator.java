@@ -0,0 +1,276 @@
+package com.bermudalocket.lastseen;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.UUID;
+import java.util.regex.Pattern;
+
+// ----------------------------------------------------------------------------
+/**
+ * Streams a last-seen.yml file into DataStorage.
+ *
+ * YamlConfiguration.loadConfiguration() builds the whole document tree before
+ * a single value can be read, which for a large file can need several times
+ * the file size in heap. The file has a fixed, simple layout:
+ *
+ * <pre>
+ * players:
+ *   playername:
+ *     last-seen: 1546300800000
+ * </pre>
+ *
+ * so this class reads it line by line instead. Files written by earlier
+ * versions are keyed by lower case player name, which is resolved to a UUID
+ * through the NameIndex; files written by the current YamlStorageBackend are
+ * keyed by UUID, which is used as is.
+ *
+ * Each time stamp that is newer than the stored one becomes an unsaved
+ * change, written to the backend by the next save, so this never touches the
+ * backend itself. If several names resolve to the same UUID, the latest time
+ * stamp is kept. Names that cannot be resolved are counted and skipped.
+ */
+public class LegacyYamlMigrator {
+    // ------------------------------------------------------------------------
+    /**
+     * Receives each (key, last-seen) pair read from the file.
+     */
+    @FunctionalInterface
+    protected interface LegacyRecordVisitor {
+        /**
+         * Visit one record.
+         *
+         * @param key the player name or UUID, as written in the file.
+         * @param lastSeen the last-seen time stamp.
+         * @return false to stop reading.
+         */
+        boolean visit(String key, long lastSeen);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Constructor.
+     *
+     * @param file the YAML file.
+     * @param names resolves player names to UUIDs.
+     */
+    public LegacyYamlMigrator(File file, NameIndex names) {
+        _file = file;
+        _names = names;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return true if the specified file holds any records keyed by player
+     * name rather than UUID.
+     *
+     * Only the first record is examined, since a file is keyed one way
+     * throughout.
+     *
+     * @param file the YAML file, which need not exist.
+     * @return true if the file is keyed by player name.
+     * @throws IOException if the file cannot be read.
+     */
+    public static boolean isNameKeyed(File file) throws IOException {
+        if (file.length() == 0) {
+            return false;
+        }
+        boolean[] nameKeyed = new boolean[1];
+        new LegacyYamlMigrator(file, null).stream((key, lastSeen) -> {
+            nameKeyed[0] = (parseUUID(key) == null);
+            return false;
+        });
+        return nameKeyed[0];
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the UUID written as a key of the file, or null if the key is a
+     * player name.
+     *
+     * Minecraft names cannot contain hyphens, so the two are never confused.
+     *
+     * @param key the key.
+     * @return the UUID, or null.
+     */
+    public static UUID parseUUID(String key) {
+        return UUID_PATTERN.matcher(key).matches() ? UUID.fromString(key) : null;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Read every record of the file into the storage, as unsaved changes.
+     *
+     * @param storage the storage to update.
+     * @return the number of records read.
+     * @throws IOException if the file cannot be read.
+     */
+    public long migrate(DataStorage storage) throws IOException {
+        long start = System.currentTimeMillis();
+        long[] counts = new long[2];
+        stream((key, lastSeen) -> {
+            ++counts[0];
+            UUID uuid = resolve(key);
+            if (uuid == null) {
+                ++counts[1];
+            } else {
+                storage.importLastSeen(uuid, lastSeen);
+            }
+            if (counts[0] % PROGRESS_INTERVAL == 0) {
+                LastSeen.PLUGIN.getLogger().info("Migrated " + counts[0] + " records from " + _file.getName() +
+                                                 " (" + (100 * _bytesRead / Math.max(1, _file.length())) + "%).");
+            }
+            return true;
+        });
+
+        LastSeen.PLUGIN.getLogger().info("Migrated " + counts[0] + " records from " + _file.getName() + " in " +
+                                         (System.currentTimeMillis() - start) + "ms; " + counts[1] +
+                                         " had unknown player names.");
+        return counts[0];
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Read the file again and check that every resolvable record is reflected
+     * in the storage.
+     *
+     * @param storage the storage populated by migrate().
+     * @return true if every record was found.
+     * @throws IOException if the file cannot be read.
+     */
+    public boolean verify(DataStorage storage) throws IOException {
+        long[] mismatches = new long[1];
+        stream((key, lastSeen) -> {
+            UUID uuid = resolve(key);
+            if (uuid != null && storage.getLastSeen(uuid) < lastSeen) {
+                ++mismatches[0];
+            }
+            return true;
+        });
+        if (mismatches[0] != 0) {
+            LastSeen.PLUGIN.getLogger().severe("Verification of " + _file.getName() + " migration failed: " +
+                                               mismatches[0] + " records are missing.");
+        }
+        return mismatches[0] == 0;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the UUID of the player identified by a key of the file.
+     *
+     * @param key the player name or UUID.
+     * @return the UUID, or null if the name is not known.
+     */
+    protected UUID resolve(String key) {
+        UUID uuid = parseUUID(key);
+        return (uuid != null) ? uuid : _names.getUUID(key);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Parse the file, passing each record to the visitor until it returns
+     * false.
+     *
+     * Lines that do not fit the expected layout are ignored.
+     *
+     * @param visitor receives the records.
+     * @throws IOException if the file cannot be read.
+     */
+    protected void stream(LegacyRecordVisitor visitor) throws IOException {
+        _bytesRead = 0;
+        try (BufferedReader reader = Files.newBufferedReader(_file.toPath(), StandardCharsets.UTF_8)) {
+            boolean inPlayers = false;
+            int nameIndent = -1;
+            String playerName = null;
+            String line;
+            while ((line = reader.readLine()) != null) {
+                _bytesRead += line.length() + 1;
+                int indent = 0;
+                while (indent < line.length() && line.charAt(indent) == ' ') {
+                    ++indent;
+                }
+                String content = line.substring(indent).trim();
+                if (content.isEmpty() || content.startsWith("#")) {
+                    continue;
+                }
+
+                if (indent == 0) {
+                    inPlayers = content.equals(PLAYERS);
+                    playerName = null;
+                } else if (!inPlayers) {
+                    continue;
+                } else if (nameIndent < 0 || indent == nameIndent) {
+                    nameIndent = indent;
+                    playerName = content.endsWith(":") ? unquote(content.substring(0, content.length() - 1))
+                                                       : null;
+                } else if (indent > nameIndent && playerName != null && content.startsWith(LAST_SEEN)) {
+                    long lastSeen;
+                    try {
+                        lastSeen = Long.parseLong(content.substring(LAST_SEEN.length()).trim());
+                    } catch (NumberFormatException ex) {
+                        // Not a time stamp. Skip.
+                        continue;
+                    }
+                    if (!visitor.visit(playerName, lastSeen)) {
+                        return;
+                    }
+                }
+            }
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Remove YAML single or double quotes from a key, if present.
+     *
+     * @param key the key as written in the file.
+     * @return the unquoted key.
+     */
+    protected static String unquote(String key) {
+        if (key.length() >= 2 &&
+            ((key.startsWith("'") && key.endsWith("'")) || (key.startsWith("\"") && key.endsWith("\"")))) {
+            return key.substring(1, key.length() - 1);
+        }
+        return key;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * The top level key containing all players.
+     */
+    protected static final String PLAYERS = "players:";
+
+    /**
+     * The per-player key of the last-seen time stamp.
+     */
+    protected static final String LAST_SEEN = "last-seen:";
+
+    /**
+     * Matches a UUID in its canonical form.
+     */
+    protected static final Pattern UUID_PATTERN =
+        Pattern.compile("[0-9a-fA-F]{8}-[0-9a-fA-F]{4}-[0-9a-fA-F]{4}-[0-9a-fA-F]{4}-[0-9a-fA-F]{12}");
+
+    /**
+     * The number of records between progress messages.
+     */
+    protected static final int PROGRESS_INTERVAL = 100000;
+
+    /**
+     * The legacy YAML file.
+     */
+    protected File _file;
+
+    /**
+     * Resolves player names to UUIDs; null if only used to test the layout.
+     */
+    protected NameIndex _names;
+
+    /**
+     * The approximate number of bytes read so far by stream(), for progress
+     * messages.
+     */
+    protected long _bytesRead;
+}
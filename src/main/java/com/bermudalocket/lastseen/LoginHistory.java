@@ -0,0 +1,322 @@
+package com.bermudalocket.lastseen;
+
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+
+// ----------------------------------------------------------------------------
+/**
+ * The most recent play sessions of each player, for /seen -h &lt;name&gt;.
+ *
+ * Each player's sessions are encoded, newest first, in a single byte array of
+ * unsigned LEB128 varints, with time stamps rounded down to the second:
+ *
+ * <pre>
+ * start[0] length[0] gap[1] length[1] gap[2] length[2] ...
+ * </pre>
+ *
+ * where start[0] is the start of the newest session, in seconds since epoch,
+ * length[i] is the length of session i and gap[i] is the time from the end of
+ * session i to the start of session i - 1, all in seconds. A typical session
+ * takes 4 to 6 bytes, so 50 sessions of one player fit in about 250 bytes.
+ *
+ * Adding a session writes the new start, length and gap and then copies the
+ * old array after its first varint, stopping once the configured number of
+ * sessions is reached; the older sessions are never decoded. Arrays are
+ * replaced, never modified, so they can be read from any thread.
+ *
+ * Players whose history changed since the last save are tracked so that only
+ * their arrays are appended to the HistoryJournal.
+ */
+public class LoginHistory {
+    // ------------------------------------------------------------------------
+    /**
+     * Constructor.
+     *
+     * @param maxSessions the maximum number of sessions kept per player; 0
+     *        disables the history.
+     */
+    public LoginHistory(int maxSessions) {
+        _maxSessions = maxSessions;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the maximum number of sessions kept per player.
+     *
+     * @return the maximum number of sessions kept per player.
+     */
+    public int getMaxSessions() {
+        return _maxSessions;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Add a completed session, discarding the oldest session of the player if
+     * the history is full.
+     *
+     * This is not synchronized; sessions should be added from one thread at
+     * a time. DataStorage adds them on the main thread once the history is
+     * complete, and on the save thread while it is loading.
+     *
+     * @param uuid the player's UUID.
+     * @param start the time stamp when the session started.
+     * @param end the time stamp when the session ended.
+     */
+    public void add(UUID uuid, long start, long end) {
+        if (_maxSessions <= 0) {
+            return;
+        }
+
+        long startSeconds = Math.max(0, start / 1000);
+        long length = Math.max(0, end / 1000 - startSeconds);
+        byte[] old = _sessions.get(uuid);
+        byte[] buffer = new byte[3 * MAX_VARINT_SIZE + ((old != null) ? old.length : 0)];
+        int size = putVarint(buffer, 0, startSeconds);
+        size = putVarint(buffer, size, length);
+        if (old != null && _maxSessions > 1) {
+            // Skip start[0], decode length[0], and copy from there.
+            long[] value = new long[1];
+            int tail = getVarint(old, 0, value);
+            long oldEnd = value[0];
+            int tailEnd = getVarint(old, tail, value);
+            oldEnd += value[0];
+            size = putVarint(buffer, size, Math.max(0, startSeconds - oldEnd));
+
+            // The new session and the old session 0 are kept; then each
+            // (gap, length) pair is one older session.
+            int kept = 2;
+            while (tailEnd < old.length && kept < _maxSessions) {
+                tailEnd = getVarint(old, tailEnd, value);
+                tailEnd = getVarint(old, tailEnd, value);
+                ++kept;
+            }
+            System.arraycopy(old, tail, buffer, size, tailEnd - tail);
+            size += tailEnd - tail;
+        }
+
+        byte[] sessions = Arrays.copyOf(buffer, size);
+        _sessions.put(uuid, sessions);
+        _encodedBytes.addAndGet(sessions.length - ((old != null) ? old.length : 0));
+        _unsaved.add(uuid);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Set the encoded sessions of a player, as read from the HistoryJournal,
+     * without marking them unsaved.
+     *
+     * @param uuid the player's UUID.
+     * @param sessions the encoded sessions.
+     */
+    public void load(UUID uuid, byte[] sessions) {
+        byte[] old = _sessions.put(uuid, sessions);
+        _encodedBytes.addAndGet(sessions.length - ((old != null) ? old.length : 0));
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Mark the history as holding every stored session.
+     *
+     * Until this is called, getSessions() may omit sessions that have not been
+     * loaded yet.
+     */
+    public void setComplete() {
+        _complete = true;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return true if the history holds every stored session.
+     *
+     * @return true if the history holds every stored session.
+     */
+    public boolean isComplete() {
+        return _complete;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the sessions of a player, newest first, as pairs of start and end
+     * time stamps rounded down to the second.
+     *
+     * @param uuid the player's UUID.
+     * @return an array of { start[0], end[0], start[1], end[1], ... }; empty if
+     *         the player has no history.
+     */
+    public long[] getSessions(UUID uuid) {
+        byte[] sessions = _sessions.get(uuid);
+        if (sessions == null) {
+            return new long[0];
+        }
+
+        long[] times = new long[2 * Math.max(1, _maxSessions)];
+        long[] value = new long[1];
+        int offset = getVarint(sessions, 0, value);
+        long start = value[0];
+        offset = getVarint(sessions, offset, value);
+        long end = start + value[0];
+        int count = 0;
+        for (;;) {
+            times[count++] = 1000 * start;
+            times[count++] = 1000 * end;
+            if (offset >= sessions.length || count == times.length) {
+                break;
+            }
+            offset = getVarint(sessions, offset, value);
+            end = start - value[0];
+            offset = getVarint(sessions, offset, value);
+            start = end - value[0];
+        }
+        return (count == times.length) ? times : Arrays.copyOf(times, count);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the number of players with a history.
+     *
+     * @return the number of players with a history.
+     */
+    public int size() {
+        return _sessions.size();
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the total size of all encoded histories, in bytes.
+     *
+     * @return the total size of all encoded histories, in bytes.
+     */
+    public long getEncodedBytes() {
+        return _encodedBytes.get();
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Visit every player's encoded sessions, in no particular order.
+     *
+     * @param visitor receives the UUID and encoded sessions of each player.
+     */
+    public void forEach(BiConsumer<UUID, byte[]> visitor) {
+        _sessions.forEach(visitor);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return true if any player's history changed since the last drain.
+     *
+     * @return true if any player's history changed since the last drain.
+     */
+    public boolean hasUnsaved() {
+        return !_unsaved.isEmpty();
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Remove and return the current encoded sessions of each player whose
+     * history changed since the last drain.
+     *
+     * @return (UUID, encoded sessions) pairs.
+     */
+    public List<Map.Entry<UUID, byte[]>> drainUnsaved() {
+        ArrayList<Map.Entry<UUID, byte[]>> changes = new ArrayList<>();
+        for (UUID uuid : _unsaved) {
+            if (_unsaved.remove(uuid)) {
+                changes.add(new AbstractMap.SimpleImmutableEntry<>(uuid, _sessions.get(uuid)));
+            }
+        }
+        return changes;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Mark the players of drained changes that could not be saved as unsaved
+     * again.
+     *
+     * @param changes the changes returned by drainUnsaved().
+     */
+    public void restoreUnsaved(List<Map.Entry<UUID, byte[]>> changes) {
+        for (Map.Entry<UUID, byte[]> change : changes) {
+            _unsaved.add(change.getKey());
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Write an unsigned LEB128 varint.
+     *
+     * @param buffer the destination, with at least MAX_VARINT_SIZE bytes
+     *        available at offset.
+     * @param offset the offset at which to write.
+     * @param value the non-negative value.
+     * @return the offset after the varint.
+     */
+    protected static int putVarint(byte[] buffer, int offset, long value) {
+        while ((value & ~0x7FL) != 0) {
+            buffer[offset++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        buffer[offset++] = (byte) value;
+        return offset;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Read an unsigned LEB128 varint.
+     *
+     * @param buffer the source.
+     * @param offset the offset of the varint.
+     * @param value receives the value in its first element.
+     * @return the offset after the varint.
+     */
+    protected static int getVarint(byte[] buffer, int offset, long[] value) {
+        long result = 0;
+        int shift = 0;
+        byte b;
+        do {
+            b = buffer[offset++];
+            result |= (long) (b & 0x7F) << shift;
+            shift += 7;
+        } while (b < 0);
+        value[0] = result;
+        return offset;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * The maximum size of a varint encoding a non-negative long.
+     */
+    protected static final int MAX_VARINT_SIZE = 9;
+
+    /**
+     * The maximum number of sessions kept per player.
+     */
+    protected final int _maxSessions;
+
+    /**
+     * Encoded sessions by player UUID.
+     */
+    protected final ConcurrentHashMap<UUID, byte[]> _sessions = new ConcurrentHashMap<>();
+
+    /**
+     * The total length of the arrays in _sessions.
+     */
+    protected final AtomicLong _encodedBytes = new AtomicLong();
+
+    /**
+     * Players whose sessions changed since the last drain.
+     */
+    protected final Set<UUID> _unsaved = ConcurrentHashMap.newKeySet();
+
+    /**
+     * True once the stored sessions have been loaded.
+     */
+    protected volatile boolean _complete;
+}
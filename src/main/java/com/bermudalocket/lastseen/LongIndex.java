@@ -0,0 +1,457 @@
+package com.bermudalocket.lastseen;
+
+import java.util.UUID;
+import java.util.concurrent.locks.StampedLock;
+
+// ----------------------------------------------------------------------------
+/**
+ * An open-addressing hash map from player UUID to primitive long.
+ *
+ * Compared to a HashMap<UUID, Long>, there are no per-entry Entry, UUID or
+ * Long objects; each entry costs one slot in each of three long[] arrays
+ * holding the most and least significant bits of the UUID and the value.
+ * Lookups compare fixed-width keys and do not allocate.
+ *
+ * Collisions are resolved by linear probing. Individual entries are never
+ * removed; removeMatching() rebuilds the table without them instead. The nil
+ * UUID (all zero bits) marks an empty slot, so it cannot be used as a
+ * key; Minecraft never issues it.
+ *
+ * The index is thread-safe. Writers take a StampedLock write lock, which is
+ * only held for the duration of a single put() (or the resize it triggers).
+ * Readers use an optimistic read, falling back to a read lock only if a write
+ * intervened. To keep optimistic readers safe, the arrays are published
+ * together in a Table whose arrays never change length; a resize installs a
+ * new Table rather than modifying the old one.
+ */
+public class LongIndex {
+    // ------------------------------------------------------------------------
+    /**
+     * Receives each entry during forEach().
+     */
+    @FunctionalInterface
+    public interface EntryVisitor {
+        /**
+         * Visit one entry.
+         *
+         * @param msb the most significant bits of the UUID.
+         * @param lsb the least significant bits of the UUID.
+         * @param value the value.
+         */
+        void visit(long msb, long lsb, long value);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Constructor.
+     */
+    public LongIndex() {
+        _table = new Table(MIN_CAPACITY);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the value associated with the specified UUID.
+     *
+     * @param uuid the UUID.
+     * @param missing the value to return if the UUID is not present.
+     * @return the value, or missing if the UUID is not present.
+     */
+    public long get(UUID uuid, long missing) {
+        return get(uuid.getMostSignificantBits(), uuid.getLeastSignificantBits(), missing);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the value associated with the specified UUID.
+     *
+     * @param msb the most significant bits of the UUID.
+     * @param lsb the least significant bits of the UUID.
+     * @param missing the value to return if the UUID is not present.
+     * @return the value, or missing if the UUID is not present.
+     */
+    public long get(long msb, long lsb, long missing) {
+        long stamp = _lock.tryOptimisticRead();
+        long value = find(_table, msb, lsb, missing);
+        if (!_lock.validate(stamp)) {
+            stamp = _lock.readLock();
+            try {
+                value = find(_table, msb, lsb, missing);
+            } finally {
+                _lock.unlockRead(stamp);
+            }
+        }
+        return value;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Associate a value with the specified UUID.
+     *
+     * @param uuid the UUID; must not be the nil UUID.
+     * @param value the value.
+     */
+    public void put(UUID uuid, long value) {
+        put(uuid.getMostSignificantBits(), uuid.getLeastSignificantBits(), value);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Associate a value with the specified UUID.
+     *
+     * @param msb the most significant bits of the UUID.
+     * @param lsb the least significant bits of the UUID.
+     * @param value the value.
+     */
+    public void put(long msb, long lsb, long value) {
+        if (msb == 0 && lsb == 0) {
+            return;
+        }
+
+        long stamp = _lock.writeLock();
+        try {
+            putLocked(msb, lsb, value);
+        } finally {
+            _lock.unlockWrite(stamp);
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Associate a value with the specified UUID if it is greater than the
+     * current value, atomically with respect to other updates.
+     *
+     * @param msb the most significant bits of the UUID.
+     * @param lsb the least significant bits of the UUID.
+     * @param value the value.
+     * @param missing the current value if the UUID is not present.
+     * @return true if the value was stored.
+     */
+    public boolean putIfGreater(long msb, long lsb, long value, long missing) {
+        if (msb == 0 && lsb == 0) {
+            return false;
+        }
+
+        long stamp = _lock.writeLock();
+        try {
+            if (value <= find(_table, msb, lsb, missing)) {
+                return false;
+            }
+            putLocked(msb, lsb, value);
+            return true;
+        } finally {
+            _lock.unlockWrite(stamp);
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Associate the same value with each of the specified UUIDs, taking the
+     * write lock once for the whole batch.
+     *
+     * @param msbs the most significant bits of the UUIDs.
+     * @param lsbs the least significant bits of the UUIDs.
+     * @param count the number of UUIDs in msbs and lsbs.
+     * @param value the value.
+     */
+    public void putAll(long[] msbs, long[] lsbs, int count, long value) {
+        long stamp = _lock.writeLock();
+        try {
+            for (int i = 0; i < count; ++i) {
+                if (msbs[i] != 0 || lsbs[i] != 0) {
+                    putLocked(msbs[i], lsbs[i], value);
+                }
+            }
+        } finally {
+            _lock.unlockWrite(stamp);
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Associate a value with the specified non-nil UUID, with the write lock
+     * held.
+     *
+     * @param msb the most significant bits of the UUID.
+     * @param lsb the least significant bits of the UUID.
+     * @param value the value.
+     */
+    protected void putLocked(long msb, long lsb, long value) {
+        Table table = _table;
+        int mask = table.values.length - 1;
+        int i = hash(msb, lsb) & mask;
+        while (!table.isEmpty(i)) {
+            if (table.msbs[i] == msb && table.lsbs[i] == lsb) {
+                table.values[i] = value;
+                return;
+            }
+            i = (i + 1) & mask;
+        }
+        table.msbs[i] = msb;
+        table.lsbs[i] = lsb;
+        table.values[i] = value;
+        if (++_size > table.values.length * MAX_LOAD) {
+            _table = table.resize(table.values.length * 2);
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Remove every entry whose UUID maps to the same value in the other index.
+     *
+     * This is used to discard entries once they have been written to a
+     * snapshot, without losing any that were updated since. The table is
+     * rebuilt, at a size suited to the remaining entries, under the write
+     * lock.
+     *
+     * @param other the other index, which is not modified.
+     */
+    public void removeMatching(LongIndex other) {
+        long stamp = _lock.writeLock();
+        try {
+            Table table = _table;
+            int remaining = 0;
+            boolean[] keep = new boolean[table.values.length];
+            for (int i = 0; i < table.values.length; ++i) {
+                if (!table.isEmpty(i)) {
+                    long otherValue = other.get(table.msbs[i], table.lsbs[i], ~table.values[i]);
+                    if (otherValue != table.values[i]) {
+                        keep[i] = true;
+                        ++remaining;
+                    }
+                }
+            }
+
+            int slots = MIN_CAPACITY;
+            while (remaining > slots * MAX_LOAD) {
+                slots *= 2;
+            }
+            Table pruned = new Table(slots);
+            int mask = slots - 1;
+            for (int i = 0; i < table.values.length; ++i) {
+                if (keep[i]) {
+                    int j = hash(table.msbs[i], table.lsbs[i]) & mask;
+                    while (!pruned.isEmpty(j)) {
+                        j = (j + 1) & mask;
+                    }
+                    pruned.msbs[j] = table.msbs[i];
+                    pruned.lsbs[j] = table.lsbs[i];
+                    pruned.values[j] = table.values[i];
+                }
+            }
+            _table = pruned;
+            _size = remaining;
+        } finally {
+            _lock.unlockWrite(stamp);
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the number of entries.
+     *
+     * @return the number of entries.
+     */
+    public int size() {
+        return _size;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return an independent copy of this index.
+     *
+     * Writers are blocked only for as long as it takes to clone the arrays.
+     *
+     * @return the copy.
+     */
+    public LongIndex copy() {
+        long stamp = _lock.readLock();
+        try {
+            LongIndex copy = new LongIndex();
+            copy._table = _table.copy();
+            copy._size = _size;
+            return copy;
+        } finally {
+            _lock.unlockRead(stamp);
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Visit every entry, in no particular order.
+     *
+     * The index must not be modified during iteration; callers iterating an
+     * index shared with other threads should iterate a copy().
+     *
+     * @param visitor receives the entries.
+     */
+    public void forEach(EntryVisitor visitor) {
+        Table table = _table;
+        for (int i = 0; i < table.values.length; ++i) {
+            if (!table.isEmpty(i)) {
+                visitor.visit(table.msbs[i], table.lsbs[i], table.values[i]);
+            }
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Search the table for the UUID.
+     *
+     * This may be called without a lock, in which case the result is only
+     * meaningful if the caller's optimistic read stamp remains valid.
+     *
+     * @param table the table.
+     * @param msb the most significant bits of the UUID.
+     * @param lsb the least significant bits of the UUID.
+     * @param missing the value to return if the UUID is not present.
+     * @return the value, or missing if the UUID is not present.
+     */
+    protected static long find(Table table, long msb, long lsb, long missing) {
+        int mask = table.values.length - 1;
+        int i = hash(msb, lsb) & mask;
+        for (int probes = 0; probes <= mask; ++probes) {
+            // Test for an empty slot first, so that the nil UUID, which an
+            // empty slot resembles, is never found.
+            if (table.isEmpty(i)) {
+                return missing;
+            } else if (table.msbs[i] == msb && table.lsbs[i] == lsb) {
+                return table.values[i];
+            }
+            i = (i + 1) & mask;
+        }
+        return missing;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Hash a UUID.
+     *
+     * Version 4 UUIDs are already random, but offline mode UUIDs and test data
+     * may not be, so the bits are mixed anyway.
+     *
+     * @param msb the most significant bits of the UUID.
+     * @param lsb the least significant bits of the UUID.
+     * @return the hash.
+     */
+    protected static int hash(long msb, long lsb) {
+        long h = (msb ^ lsb) * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * The arrays of a hash table, published together.
+     *
+     * The arrays of a published Table are only modified in place by put()
+     * under the write lock, and never change length.
+     */
+    protected static final class Table {
+        /**
+         * Constructor.
+         *
+         * @param slots the number of slots; a power of two.
+         */
+        Table(int slots) {
+            this(new long[slots], new long[slots], new long[slots]);
+        }
+
+        /**
+         * Constructor.
+         *
+         * @param msbs the most significant bits of the keys.
+         * @param lsbs the least significant bits of the keys.
+         * @param values the values.
+         */
+        Table(long[] msbs, long[] lsbs, long[] values) {
+            this.msbs = msbs;
+            this.lsbs = lsbs;
+            this.values = values;
+        }
+
+        /**
+         * Return true if the specified slot is empty.
+         *
+         * @param i the slot.
+         * @return true if the specified slot is empty.
+         */
+        boolean isEmpty(int i) {
+            return msbs[i] == 0 && lsbs[i] == 0;
+        }
+
+        /**
+         * Return a copy of this Table.
+         *
+         * @return the copy.
+         */
+        Table copy() {
+            return new Table(msbs.clone(), lsbs.clone(), values.clone());
+        }
+
+        /**
+         * Return a new Table with the specified number of slots containing all
+         * of the entries of this one.
+         *
+         * @param slots the number of slots; a power of two.
+         * @return the new Table.
+         */
+        Table resize(int slots) {
+            Table table = new Table(slots);
+            int mask = slots - 1;
+            for (int i = 0; i < values.length; ++i) {
+                if (!isEmpty(i)) {
+                    int j = hash(msbs[i], lsbs[i]) & mask;
+                    while (!table.isEmpty(j)) {
+                        j = (j + 1) & mask;
+                    }
+                    table.msbs[j] = msbs[i];
+                    table.lsbs[j] = lsbs[i];
+                    table.values[j] = values[i];
+                }
+            }
+            return table;
+        }
+
+        /**
+         * Most significant bits of the keys; zero, with lsbs, for empty slots.
+         */
+        final long[] msbs;
+
+        /**
+         * Least significant bits of the keys; zero, with msbs, for empty
+         * slots.
+         */
+        final long[] lsbs;
+
+        /**
+         * Values, parallel to the keys.
+         */
+        final long[] values;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * The minimum number of slots.
+     */
+    protected static final int MIN_CAPACITY = 16;
+
+    /**
+     * The maximum fraction of slots that can be occupied before resizing.
+     */
+    protected static final double MAX_LOAD = 0.6;
+
+    /**
+     * Guards _table and _size.
+     */
+    protected final StampedLock _lock = new StampedLock();
+
+    /**
+     * The current hash table.
+     */
+    protected volatile Table _table;
+
+    /**
+     * The number of entries.
+     */
+    protected volatile int _size;
+}
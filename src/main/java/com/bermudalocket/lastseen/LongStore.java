@@ -0,0 +1,486 @@
+package com.bermudalocket.lastseen;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+// ----------------------------------------------------------------------------
+/**
+ * A persistent map from player UUID to a long value, such as a last-seen time
+ * stamp or a playtime total, backed by a StorageBackend.
+ *
+ * Values are looked up first in a LongIndex that holds every value set or
+ * loaded since the last compaction, and then in the memory-mapped
+ * SnapshotFile (if any) returned by the backend. Neither lookup boxes or
+ * allocates. The entries changed since the last save are tracked separately,
+ * and only those are passed to the backend.
+ *
+ * Each successful write is counted, and the written entries are passed to
+ * any registered ChangeListeners, which form a feed of saved changes for
+ * replication or auditing.
+ *
+ * get() and set() are thread-safe and do not wait for saves. The remaining
+ * methods are called by DataStorage, from one thread at a time, except for
+ * the listener registration and counter getters, which are thread-safe.
+ */
+public class LongStore {
+    // ------------------------------------------------------------------------
+    /**
+     * Receives the changes written by each successful save.
+     */
+    @FunctionalInterface
+    public interface ChangeListener {
+        /**
+         * Called on the save thread after changes have been written to the
+         * backend.
+         *
+         * The listener must not block for long, since it delays the save.
+         *
+         * @param store the store whose changes were written.
+         * @param changes the written changes, from player UUID to value; not
+         *        to be modified.
+         */
+        void changesSaved(LongStore store, Map<UUID, Long> changes);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Constructor.
+     *
+     * @param description describes the values in log messages, e.g. "last
+     *        seen time stamps".
+     * @param backend the persistence layer.
+     */
+    public LongStore(String description, StorageBackend backend) {
+        _description = description;
+        _backend = backend;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the description of the values, e.g. "last seen time stamps".
+     *
+     * @return the description of the values.
+     */
+    public String getDescription() {
+        return _description;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the persistence layer.
+     *
+     * @return the persistence layer.
+     */
+    public StorageBackend getBackend() {
+        return _backend;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Load the stored values, if any.
+     *
+     * The backend is not compacted here, since this runs on the main thread
+     * while the plugin is enabled; the caller should compact it on the save
+     * thread if needsCompaction() returns true.
+     *
+     * If the values cannot be loaded, the failure is logged and the store
+     * starts empty, but refuses to write or compact the backend, since that
+     * could replace the stored values with only those changed since startup.
+     * Changes are kept in memory, and in the WriteAheadLog, until the problem
+     * is fixed and the server restarted.
+     *
+     * @param visitor receives each loaded value that is not in the snapshot;
+     *        may be null.
+     */
+    public void load(LongIndex.EntryVisitor visitor) {
+        try {
+            if (_backend.exists()) {
+                long start = System.currentTimeMillis();
+                _base = _backend.load((msb, lsb, value) -> {
+                    _values.put(msb, lsb, value);
+                    if (visitor != null) {
+                        visitor.visit(msb, lsb, value);
+                    }
+                });
+                if (LastSeen.PLUGIN.isDebug()) {
+                    LastSeen.PLUGIN.getLogger().info("Loaded " + _values.size() + " journalled and " +
+                                                     ((_base != null) ? _base.size() : 0) + " snapshot " +
+                                                     _description + " in " +
+                                                     (System.currentTimeMillis() - start) + "ms");
+                }
+            }
+        } catch (Exception ex) {
+            _loadFailed = true;
+            LastSeen.PLUGIN.getLogger().severe("Cannot load " + _description + ": " + ex.getMessage() +
+                                               ". Changes will not be saved until this is fixed.");
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the snapshot holding the values not in the LongIndex, or null if
+     * there is none.
+     *
+     * @return the snapshot, or null.
+     */
+    public SnapshotFile getBase() {
+        return _base;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the value for the specified player, or 0 if there is none.
+     *
+     * @param uuid the player's UUID.
+     * @return the value, or 0.
+     */
+    public long get(UUID uuid) {
+        return get(uuid.getMostSignificantBits(), uuid.getLeastSignificantBits());
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the value for the player with the specified UUID, or 0 if there
+     * is none.
+     *
+     * @param msb the most significant bits of the player's UUID.
+     * @param lsb the least significant bits of the player's UUID.
+     * @return the value, or 0.
+     */
+    public long get(long msb, long lsb) {
+        long value = _values.get(msb, lsb, MISSING);
+        if (value == MISSING) {
+            // Read _base after _values; see compact().
+            SnapshotFile base = _base;
+            value = (base != null) ? base.get(msb, lsb, 0) : 0;
+        }
+        return value;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Set the value for the specified player, to be written by the next save.
+     *
+     * @param uuid the player's UUID.
+     * @param value the value.
+     */
+    public void set(UUID uuid, long value) {
+        _values.put(uuid, value);
+        _changes.put(uuid, value);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Set the same value for each of the specified players, to be written by
+     * the next save.
+     *
+     * The LongIndex is updated as one batch, under a single acquisition of its
+     * lock.
+     *
+     * @param msbs the most significant bits of the players' UUIDs.
+     * @param lsbs the least significant bits of the players' UUIDs.
+     * @param uuids the players' UUIDs.
+     * @param value the value.
+     */
+    public void setAll(long[] msbs, long[] lsbs, UUID[] uuids, long value) {
+        _values.putAll(msbs, lsbs, uuids.length, value);
+        Long boxed = value;
+        for (UUID uuid : uuids) {
+            _changes.put(uuid, boxed);
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Set the value for the specified player, to be written by the next save,
+     * if it is greater than the current value.
+     *
+     * Unlike comparing get() with the value and then calling set(), this
+     * never overwrites a greater value set concurrently.
+     *
+     * @param uuid the player's UUID.
+     * @param value the value.
+     * @return true if the value was set.
+     */
+    public boolean raise(UUID uuid, long value) {
+        long msb = uuid.getMostSignificantBits();
+        long lsb = uuid.getLeastSignificantBits();
+        SnapshotFile base = _base;
+        if (!_values.putIfGreater(msb, lsb, value, (base != null) ? base.get(msb, lsb, 0) : 0)) {
+            return false;
+        }
+        _changes.merge(uuid, value, Math::max);
+        return true;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the approximate number of stored values.
+     *
+     * Players in both the snapshot and the LongIndex are counted twice.
+     *
+     * @return the approximate number of stored values.
+     */
+    public int getSize() {
+        SnapshotFile base = _base;
+        return _values.size() + ((base != null) ? base.size() : 0);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return true if there are changes that have not been drained.
+     *
+     * @return true if there are changes that have not been drained.
+     */
+    public boolean hasChanges() {
+        return !_changes.isEmpty();
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Remove and return all changed entries.
+     *
+     * An entry is only removed if it still has the value that was copied, so a
+     * concurrent set() is never lost.
+     *
+     * @return a copy of the removed entries.
+     */
+    public HashMap<UUID, Long> drainChanges() {
+        HashMap<UUID, Long> changes = new HashMap<>();
+        for (Map.Entry<UUID, Long> entry : _changes.entrySet()) {
+            if (_changes.remove(entry.getKey(), entry.getValue())) {
+                changes.put(entry.getKey(), entry.getValue());
+            }
+        }
+        return changes;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Write drained changes to the backend on the current thread.
+     *
+     * If the write fails, the changes are returned to the changed entries.
+     *
+     * @param changes the changes returned by drainChanges().
+     * @return true if the changes were written successfully.
+     */
+    public boolean writeChanges(Map<UUID, Long> changes) {
+        long start = System.currentTimeMillis();
+        try {
+            if (_loadFailed) {
+                throw new IOException("the stored values could not be loaded");
+            }
+            if (LastSeen.PLUGIN.isDebug()) {
+                LastSeen.PLUGIN.getLogger().info("Saving " + changes.size() + " changed " + _description + ".");
+            }
+            _backend.write(changes);
+            _flushCount.incrementAndGet();
+            _lastFlushSize = changes.size();
+            long total = _entriesFlushed.addAndGet(changes.size());
+            if (LastSeen.PLUGIN.isDebug()) {
+                LastSeen.PLUGIN.getLogger().info("Saving elapsed time: " + (System.currentTimeMillis() - start) + "ms (" +
+                                                 total + " " + _description + " saved in " + _flushCount.get() +
+                                                 " saves since startup)");
+            }
+            notifyListeners(changes);
+            return true;
+        } catch (Exception ex) {
+            LastSeen.PLUGIN.getLogger().severe("Cannot save " + _description + ": " + ex.getMessage());
+
+            // Retry on the next save, unless superseded in the meantime.
+            for (Map.Entry<UUID, Long> entry : changes.entrySet()) {
+                _changes.putIfAbsent(entry.getKey(), entry.getValue());
+            }
+            return false;
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Register a listener to receive the changes written by each subsequent
+     * save.
+     *
+     * @param listener the listener.
+     */
+    public void addListener(ChangeListener listener) {
+        _listeners.add(listener);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Unregister a listener.
+     *
+     * @param listener the listener.
+     */
+    public void removeListener(ChangeListener listener) {
+        _listeners.remove(listener);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the number of successful writes of changed entries since
+     * startup.
+     *
+     * @return the number of successful writes.
+     */
+    public long getFlushCount() {
+        return _flushCount.get();
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the total number of entries written since startup.
+     *
+     * @return the total number of entries written.
+     */
+    public long getEntriesFlushed() {
+        return _entriesFlushed.get();
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the number of entries written by the most recent successful
+     * write.
+     *
+     * @return the number of entries written by the most recent write.
+     */
+    public int getLastFlushSize() {
+        return _lastFlushSize;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Pass written changes to each listener, logging rather than propagating
+     * listener errors, since the changes are already saved.
+     *
+     * @param changes the written changes.
+     */
+    protected void notifyListeners(Map<UUID, Long> changes) {
+        if (!_listeners.isEmpty()) {
+            Map<UUID, Long> unmodifiable = Collections.unmodifiableMap(changes);
+            for (ChangeListener listener : _listeners) {
+                try {
+                    listener.changesSaved(this, unmodifiable);
+                } catch (Exception ex) {
+                    LastSeen.PLUGIN.getLogger().severe("Error in listener for saved " + _description + ": " +
+                                                       ex.getMessage());
+                }
+            }
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return true if the backend should be compacted.
+     *
+     * @return true if the backend should be compacted.
+     */
+    public boolean needsCompaction() {
+        return !_loadFailed && _backend.needsCompaction(getSize());
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Compact the backend on the current thread.
+     *
+     * The backend is given a copy of the LongIndex to merge into a new
+     * snapshot. set() updates the LongIndex before the changed entries, so
+     * the copy always includes every change already passed to the backend.
+     * Values set after the copy remain changed for the next save.
+     *
+     * The new snapshot is published before the merged entries are removed
+     * from the LongIndex, and get() reads the LongIndex before the snapshot,
+     * so a concurrent lookup always finds the entry in one or the other.
+     * Entries that changed since the copy are kept.
+     */
+    public void compact() {
+        if (_loadFailed) {
+            return;
+        }
+        try {
+            LongIndex merged = _values.copy();
+            SnapshotFile base = _backend.compact(merged);
+            if (base != null) {
+                _base = base;
+                _values.removeMatching(merged);
+            }
+        } catch (Exception ex) {
+            LastSeen.PLUGIN.getLogger().severe("Cannot compact " + _description + ": " + ex.getMessage());
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Release the backend's resources.
+     *
+     * @throws IOException if the backend could not be closed cleanly.
+     */
+    public void close() throws IOException {
+        _backend.close();
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * The value returned by LongIndex.get() for players not in _values.
+     * Stored values are never negative.
+     */
+    protected static final long MISSING = Long.MIN_VALUE;
+
+    /**
+     * Describes the values in log messages.
+     */
+    protected final String _description;
+
+    /**
+     * The persistence layer.
+     */
+    protected final StorageBackend _backend;
+
+    /**
+     * Index from player UUID to value, for players whose value was set or
+     * loaded since the last compaction. These supersede _base.
+     */
+    protected final LongIndex _values = new LongIndex();
+
+    /**
+     * The memory-mapped snapshot holding all other values, or null if there
+     * is none.
+     */
+    protected volatile SnapshotFile _base;
+
+    /**
+     * True if load() failed, in which case the backend is never written.
+     */
+    protected volatile boolean _loadFailed;
+
+    /**
+     * The subset of _values that has changed since the last save.
+     */
+    protected final ConcurrentHashMap<UUID, Long> _changes = new ConcurrentHashMap<>();
+
+    /**
+     * Receive the changes written by each save.
+     */
+    protected final CopyOnWriteArrayList<ChangeListener> _listeners = new CopyOnWriteArrayList<>();
+
+    /**
+     * The number of successful writes since startup.
+     */
+    protected final AtomicLong _flushCount = new AtomicLong();
+
+    /**
+     * The number of entries written since startup.
+     */
+    protected final AtomicLong _entriesFlushed = new AtomicLong();
+
+    /**
+     * The number of entries written by the most recent successful write.
+     */
+    protected volatile int _lastFlushSize;
+}
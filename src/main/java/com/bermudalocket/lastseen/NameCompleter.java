@@ -0,0 +1,216 @@
+package com.bermudalocket.lastseen;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+// ----------------------------------------------------------------------------
+/**
+ * A prefix index over player names, for tab completion.
+ *
+ * Names are kept, in their original case, in a sorted array ordered by
+ * String.CASE_INSENSITIVE_ORDER. Since that ordering compares character by
+ * character, all names sharing a case-insensitive prefix are contiguous, so a
+ * completion is a binary search for the first match followed by a scan of at
+ * most limit names: O(log n + limit), with no per-name objects beyond the
+ * Strings themselves.
+ *
+ * New names are appended to an unsorted pending list, which costs O(1).
+ * complete() binary-searches the sorted array and scans only the pending
+ * names linearly, so it never sorts or merges on the calling thread. merge()
+ * takes the pending names under the lock, then sorts them and merges them into
+ * a new array outside it, so that add() and complete() are not blocked for
+ * the duration; it is called from background threads, after the bulk load
+ * of offline players and after each save. The merged array is published in a
+ * volatile field, so complete() takes no lock at all while nothing is
+ * pending.
+ */
+public class NameCompleter {
+    // ------------------------------------------------------------------------
+    /**
+     * Add a name.
+     *
+     * Names that differ only in case from one already added are ignored by
+     * merge().
+     *
+     * @param name the name, in its original case.
+     */
+    public synchronized void add(String name) {
+        _pending.add(name);
+        _hasPending = true;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return up to limit names that start with the specified prefix, ignoring
+     * case, in case-insensitive alphabetical order.
+     *
+     * This takes O(log n + limit) time for the n merged names, plus O(p) for
+     * the p names not yet merged.
+     *
+     * @param prefix the prefix, in any case.
+     * @param limit the maximum number of names to return.
+     * @return the matching names, in their original case.
+     */
+    public List<String> complete(String prefix, int limit) {
+        String[] sorted;
+        String[] merging = null;
+        ArrayList<String> pendingMatches = null;
+        if (_hasPending) {
+            // Read _sorted with _merging, so that names being merged are
+            // found in exactly one of them.
+            synchronized (this) {
+                sorted = _sorted;
+                merging = _merging;
+                pendingMatches = new ArrayList<>();
+                addMatches(pendingMatches, _pending, prefix, limit);
+            }
+        } else {
+            sorted = _sorted;
+        }
+        if (merging != null) {
+            // Never modified once published, so scanned outside the lock.
+            addMatches(pendingMatches, Arrays.asList(merging), prefix, limit);
+        }
+
+        int i = Arrays.binarySearch(sorted, prefix, String.CASE_INSENSITIVE_ORDER);
+        if (i < 0) {
+            i = -i - 1;
+        }
+        ArrayList<String> names = new ArrayList<>();
+        for (; i < sorted.length && names.size() < limit && startsWithIgnoreCase(sorted[i], prefix); ++i) {
+            names.add(sorted[i]);
+        }
+
+        if (pendingMatches != null && !pendingMatches.isEmpty()) {
+            names.addAll(pendingMatches);
+            Collections.sort(names, String.CASE_INSENSITIVE_ORDER);
+            if (names.size() > limit) {
+                return new ArrayList<>(names.subList(0, limit));
+            }
+        }
+        return names;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Sort the pending names and merge them into the sorted array.
+     *
+     * This takes O(p log p + n) time for p pending and n sorted names, but
+     * holds the lock only to take the pending names and to publish the
+     * result. Concurrent calls are serialised.
+     */
+    public void merge() {
+        synchronized (_mergeLock) {
+            String[] pending;
+            synchronized (this) {
+                if (_pending.isEmpty()) {
+                    return;
+                }
+                pending = _pending.toArray(new String[_pending.size()]);
+                _pending.clear();
+                _merging = pending;
+            }
+
+            long start = System.currentTimeMillis();
+            String[] added = pending.clone();
+            Arrays.sort(added, String.CASE_INSENSITIVE_ORDER);
+
+            // Only merge() replaces _sorted, so it cannot change meanwhile.
+            String[] sorted = _sorted;
+            String[] merged = new String[sorted.length + added.length];
+            int i = 0;
+            int j = 0;
+            int n = 0;
+            while (i < sorted.length || j < added.length) {
+                String next;
+                if (j == added.length ||
+                    (i < sorted.length && String.CASE_INSENSITIVE_ORDER.compare(sorted[i], added[j]) <= 0)) {
+                    next = sorted[i++];
+                } else {
+                    next = added[j++];
+                }
+                if (n == 0 || !merged[n - 1].equalsIgnoreCase(next)) {
+                    merged[n++] = next;
+                }
+            }
+            merged = (n == merged.length) ? merged : Arrays.copyOf(merged, n);
+
+            synchronized (this) {
+                _sorted = merged;
+                _merging = null;
+                _hasPending = !_pending.isEmpty();
+            }
+
+            if (LastSeen.PLUGIN.isDebug()) {
+                LastSeen.PLUGIN.getLogger().info("Merged " + added.length + " names into the completion index of " +
+                                                 n + " names in " + (System.currentTimeMillis() - start) + "ms");
+            }
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Add the unsorted names that start with the prefix to a list of matches,
+     * keeping only the first limit matches once it grows large.
+     *
+     * @param matches the matches.
+     * @param names the unsorted names.
+     * @param prefix the prefix.
+     * @param limit the maximum number of names to return.
+     */
+    protected static void addMatches(List<String> matches, List<String> names, String prefix, int limit) {
+        for (String name : names) {
+            if (startsWithIgnoreCase(name, prefix)) {
+                matches.add(name);
+                if (matches.size() > 4 * limit) {
+                    // Only the first limit matches can be returned.
+                    Collections.sort(matches, String.CASE_INSENSITIVE_ORDER);
+                    matches.subList(limit, matches.size()).clear();
+                }
+            }
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return true if the name starts with the prefix, ignoring case.
+     *
+     * @param name the name.
+     * @param prefix the prefix.
+     * @return true if the name starts with the prefix, ignoring case.
+     */
+    protected static boolean startsWithIgnoreCase(String name, String prefix) {
+        return name.regionMatches(true, 0, prefix, 0, prefix.length());
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * All merged names, in their original case, sorted by
+     * String.CASE_INSENSITIVE_ORDER. Replaced, never modified, once published.
+     */
+    protected volatile String[] _sorted = new String[0];
+
+    /**
+     * Names added since the last merge(). Guarded by this.
+     */
+    protected final ArrayList<String> _pending = new ArrayList<>();
+
+    /**
+     * The names taken from _pending by a merge() in progress, which are not
+     * yet in _sorted, or null. Guarded by this; never modified once set.
+     */
+    protected String[] _merging;
+
+    /**
+     * Serialises merge().
+     */
+    protected final Object _mergeLock = new Object();
+
+    /**
+     * True if _pending or _merging may be non-empty; lets complete() skip the
+     * lock.
+     */
+    protected volatile boolean _hasPending;
+}
@@ -0,0 +1,345 @@
+package com.bermudalocket.lastseen;
+
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import org.bukkit.Bukkit;
+import org.bukkit.OfflinePlayer;
+
+// ----------------------------------------------------------------------------
+/**
+ * Maps player names to UUIDs, and records the names each UUID has used and
+ * when that player was first seen.
+ *
+ * Together with DataStorage, this answers /seen and /firstseen without
+ * materialising an OfflinePlayer, which would pin the server's per-player
+ * state in the heap for every player ever seen. First-seen time stamps are
+ * held in a LongIndex, costing 24 bytes per player.
+ *
+ * Storage is keyed by UUID, so that a renamed player keeps their history and
+ * two players who swap names do not collide. This index resolves the name
+ * typed in a command to the UUID of the player who most recently used it.
+ *
+ * The index is persisted by a NameJournal, which is loaded at startup and
+ * appended with the names that changed since the last save. On every start,
+ * it is also refreshed in the background from Bukkit.getOfflinePlayers();
+ * until that pass completes, isComplete() returns false and a name that is
+ * not found may simply not have been indexed yet.
+ *
+ * Queries are thread-safe and lock-free. Updates are synchronized.
+ */
+public class NameIndex {
+    // ------------------------------------------------------------------------
+    /**
+     * Record that the player with the specified UUID is currently using the
+     * specified name.
+     *
+     * If the name was previously used by a different player, it now resolves
+     * to this one.
+     *
+     * The player's first-seen time stamp is set to firstSeen if that is
+     * earlier than the one already recorded.
+     *
+     * @param uuid the player's UUID.
+     * @param name the player's name, in its original case.
+     * @param firstSeen when the player first played, as milliseconds since
+     *        epoch, or 0 if not known.
+     */
+    public synchronized void add(UUID uuid, String name, long firstSeen) {
+        boolean nameChanged = update(uuid, name);
+        if (updateFirstSeen(uuid, firstSeen) || nameChanged) {
+            _unsaved.add(new AbstractMap.SimpleImmutableEntry<>(uuid, name));
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Record a name read from the NameJournal.
+     *
+     * This is the same as add(), except that the name is not marked unsaved.
+     *
+     * @param uuid the player's UUID.
+     * @param name the player's name, in its original case.
+     * @param firstSeen when the player first played, or 0 if not known.
+     */
+    public synchronized void load(UUID uuid, String name, long firstSeen) {
+        update(uuid, name);
+        updateFirstSeen(uuid, firstSeen);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Add the name of every player known to the server, then mark the index
+     * complete.
+     *
+     * This can take several seconds on a large server, so it is called
+     * asynchronously. It also builds the tab completion and suggestion
+     * indices, which are too slow to build on the main thread.
+     */
+    public void addOfflinePlayers() {
+        // Index names loaded from the NameJournal before the slow part.
+        merge();
+
+        long start = System.currentTimeMillis();
+        int count = 0;
+        for (OfflinePlayer player : Bukkit.getOfflinePlayers()) {
+            String name = player.getName();
+            if (name != null) {
+                add(player.getUniqueId(), name, player.getFirstPlayed());
+                ++count;
+            }
+        }
+        _complete = true;
+        merge();
+        if (LastSeen.PLUGIN.isDebug()) {
+            LastSeen.PLUGIN.getLogger().info("Indexed " + count + " offline player names in " +
+                                             (System.currentTimeMillis() - start) + "ms");
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Merge the names added since the last merge into the tab completion and
+     * suggestion indices.
+     *
+     * Until then, those names are scanned linearly, so this should be called
+     * from a background thread whenever names have been added.
+     */
+    public void merge() {
+        _completer.merge();
+        _suggester.merge();
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return up to limit known names that start with the specified prefix,
+     * for tab completion.
+     *
+     * @param prefix the prefix, in any case.
+     * @param limit the maximum number of names to return.
+     * @return the names, in their original case.
+     * @see NameCompleter#complete(String, int)
+     */
+    public List<String> complete(String prefix, int limit) {
+        return _completer.complete(prefix, limit);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return up to limit known names within maxDistance edits of the
+     * specified name, closest first.
+     *
+     * @param name the misspelt name, in any case.
+     * @param maxDistance the maximum Levenshtein distance.
+     * @param limit the maximum number of names to return.
+     * @return the names, in their original case.
+     * @see NameSuggester#suggest(String, int, int)
+     */
+    public List<String> suggest(String name, int maxDistance, int limit) {
+        return _suggester.suggest(name, maxDistance, limit);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return true if addOfflinePlayers() has completed, so that every player
+     * known to the server is in the index.
+     *
+     * @return true if the index is complete.
+     */
+    public boolean isComplete() {
+        return _complete;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return true if any names have changed since the last drainUnsaved().
+     *
+     * @return true if there are unsaved names.
+     */
+    public boolean hasUnsaved() {
+        return !_unsaved.isEmpty();
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Remove and return the names added since the last call.
+     *
+     * @return the (UUID, name) pairs, in the order they were added, so that
+     *         replaying them reproduces each player's name history.
+     */
+    public List<Map.Entry<UUID, String>> drainUnsaved() {
+        ArrayList<Map.Entry<UUID, String>> unsaved = new ArrayList<>();
+        Map.Entry<UUID, String> entry;
+        while ((entry = _unsaved.poll()) != null) {
+            unsaved.add(entry);
+        }
+        return unsaved;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Mark names returned by drainUnsaved() unsaved again, after a failed
+     * save.
+     *
+     * @param unsaved the names returned by drainUnsaved().
+     */
+    public void restoreUnsaved(List<Map.Entry<UUID, String>> unsaved) {
+        _unsaved.addAll(unsaved);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the UUID of the player who most recently used the specified
+     * name, or null if not known.
+     *
+     * @param name the name, in any case.
+     * @return the UUID, or null.
+     */
+    public UUID getUUID(String name) {
+        return _uuids.get(name.toLowerCase());
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the most recent name of the player with the specified UUID, in
+     * its original case, or null if not known.
+     *
+     * @param uuid the player's UUID.
+     * @return the name, or null.
+     */
+    public String getName(UUID uuid) {
+        String[] history = _history.get(uuid);
+        return (history != null) ? history[history.length - 1] : null;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the time stamp when the player with the specified UUID was first
+     * seen, or 0 if not known.
+     *
+     * @param uuid the player's UUID.
+     * @return the first-seen time stamp, as milliseconds since epoch, or 0.
+     */
+    public long getFirstSeen(UUID uuid) {
+        return _firstSeen.get(uuid, 0);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return all names used by the player with the specified UUID, oldest
+     * first.
+     *
+     * @param uuid the player's UUID.
+     * @return the names; empty if the player is not known.
+     */
+    public List<String> getNameHistory(UUID uuid) {
+        String[] history = _history.get(uuid);
+        return (history != null) ? Collections.unmodifiableList(Arrays.asList(history))
+                                 : Collections.<String>emptyList();
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the number of known players.
+     *
+     * @return the number of known players.
+     */
+    public int size() {
+        return _history.size();
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Record that the player is using the name.
+     *
+     * @param uuid the player's UUID.
+     * @param name the player's name, in its original case.
+     * @return true if the index changed.
+     */
+    protected boolean update(UUID uuid, String name) {
+        UUID previous = _uuids.put(name.toLowerCase(), uuid);
+        if (previous == null) {
+            _completer.add(name);
+            _suggester.add(name);
+        }
+
+        String[] history = _history.get(uuid);
+        if (history == null) {
+            _history.put(uuid, new String[] { name });
+        } else if (history[history.length - 1].equalsIgnoreCase(name)) {
+            if (history[history.length - 1].equals(name)) {
+                return !uuid.equals(previous);
+            }
+            history = history.clone();
+            history[history.length - 1] = name;
+            _history.put(uuid, history);
+        } else {
+            history = Arrays.copyOf(history, history.length + 1);
+            history[history.length - 1] = name;
+            _history.put(uuid, history);
+        }
+        return true;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Lower the player's first-seen time stamp to firstSeen.
+     *
+     * @param uuid the player's UUID.
+     * @param firstSeen the candidate time stamp, or 0 if not known.
+     * @return true if the time stamp changed.
+     */
+    protected boolean updateFirstSeen(UUID uuid, long firstSeen) {
+        long current = _firstSeen.get(uuid, 0);
+        if (firstSeen > 0 && (current == 0 || firstSeen < current)) {
+            _firstSeen.put(uuid, firstSeen);
+            return true;
+        }
+        return false;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Map from lower case name to the UUID of the player who most recently
+     * used it.
+     */
+    protected final ConcurrentHashMap<String, UUID> _uuids = new ConcurrentHashMap<>();
+
+    /**
+     * Map from UUID to the names used by that player, oldest first. The arrays
+     * are replaced, never modified, once published.
+     */
+    protected final ConcurrentHashMap<UUID, String[]> _history = new ConcurrentHashMap<>();
+
+    /**
+     * Prefix index over the keys of _uuids, in their original case.
+     */
+    protected final NameCompleter _completer = new NameCompleter();
+
+    /**
+     * Approximate-match index over the keys of _uuids.
+     */
+    protected final NameSuggester _suggester = new NameSuggester();
+
+    /**
+     * Map from UUID to first-seen time stamp.
+     */
+    protected final LongIndex _firstSeen = new LongIndex();
+
+    /**
+     * (UUID, name) pairs added since the last drainUnsaved(), oldest first.
+     */
+    protected final ConcurrentLinkedQueue<Map.Entry<UUID, String>> _unsaved = new ConcurrentLinkedQueue<>();
+
+    /**
+     * True once addOfflinePlayers() has completed.
+     */
+    protected volatile boolean _complete;
+}
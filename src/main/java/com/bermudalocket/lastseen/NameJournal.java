@@ -0,0 +1,226 @@
+package com.bermudalocket.lastseen;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+// ----------------------------------------------------------------------------
+/**
+ * Persists the NameIndex as an append-only journal, so that player names can
+ * be resolved at startup without enumerating Bukkit.getOfflinePlayers().
+ *
+ * The file starts with a HEADER_SIZE byte header (MAGIC, VERSION) followed by
+ * records of RECORD_SIZE bytes:
+ *
+ * <ul>
+ * <li>8 bytes: the most significant bits of the player's UUID.</li>
+ * <li>8 bytes: the least significant bits of the player's UUID.</li>
+ * <li>8 bytes: the player's first-seen time stamp, or 0 if not known.</li>
+ * <li>NAME_SIZE bytes: the player's name in UTF-8, padded with zeroes.</li>
+ * </ul>
+ *
+ * A record is appended only when a player is first seen, changes name, or
+ * gains an earlier first-seen time stamp, so the file stays close to the size
+ * of the index and is never compacted. Replaying the records in order
+ * reconstructs each player's name history; the earliest non-zero first-seen
+ * time stamp wins.
+ *
+ * If the server dies part way through an append, the file may end in a
+ * partial record. That record is discarded and the file truncated on load.
+ */
+public class NameJournal {
+    // ------------------------------------------------------------------------
+    /**
+     * Constructor.
+     *
+     * @param file the journal file.
+     */
+    public NameJournal(File file) {
+        _file = file;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return true if the journal file exists.
+     *
+     * @return true if the journal file exists.
+     */
+    public boolean exists() {
+        return _file.exists();
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Read all records into the index, without marking them unsaved.
+     *
+     * @param names the index to populate.
+     * @throws IOException if the file cannot be read.
+     */
+    public void load(NameIndex names) throws IOException {
+        try (FileChannel channel = FileChannel.open(_file.toPath(), StandardOpenOption.READ,
+                                                    StandardOpenOption.WRITE)) {
+            if (channel.size() == 0) {
+                return;
+            }
+            ByteBuffer buffer = ByteBuffer.allocate(READ_BUFFER_RECORDS * RECORD_SIZE);
+            buffer.limit(HEADER_SIZE);
+            while (buffer.hasRemaining() && channel.read(buffer) > 0) {
+            }
+            buffer.flip();
+            if (buffer.remaining() != HEADER_SIZE || buffer.getInt() != MAGIC) {
+                throw new IOException(_file.getName() + " is not a name journal");
+            }
+            int version = buffer.getInt();
+            if (version != VERSION) {
+                throw new IOException(_file.getName() + " has unsupported version " + version);
+            }
+
+            byte[] name = new byte[NAME_SIZE];
+            long valid = HEADER_SIZE;
+            buffer.clear();
+            while (channel.read(buffer) > 0) {
+                buffer.flip();
+                while (buffer.remaining() >= RECORD_SIZE) {
+                    UUID uuid = new UUID(buffer.getLong(), buffer.getLong());
+                    long firstSeen = buffer.getLong();
+                    buffer.get(name);
+                    names.load(uuid, decodeName(name), firstSeen);
+                    valid += RECORD_SIZE;
+                }
+                buffer.compact();
+            }
+
+            if (channel.size() != valid) {
+                LastSeen.PLUGIN.getLogger().warning("Discarding partial record at the end of " + _file.getName() + ".");
+                channel.truncate(valid);
+            }
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Append the specified names to the journal.
+     *
+     * @param changes (UUID, name) pairs, in the order they were added to the
+     *        NameIndex.
+     * @param names supplies the current first-seen time stamps.
+     * @throws IOException if the records could not be written.
+     */
+    public void write(List<Map.Entry<UUID, String>> changes, NameIndex names) throws IOException {
+        if (_channel == null) {
+            _channel = FileChannel.open(_file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+            if (_channel.size() == 0) {
+                ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+                header.putInt(MAGIC).putInt(VERSION).flip();
+                ChannelIO.writeFully(_channel, header);
+            }
+            _channel.position(_channel.size());
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocate(changes.size() * RECORD_SIZE);
+        for (Map.Entry<UUID, String> entry : changes) {
+            putRecord(buffer, entry.getKey(), entry.getValue(), names.getFirstSeen(entry.getKey()));
+        }
+        buffer.flip();
+        ChannelIO.writeFully(_channel, buffer);
+        _channel.force(false);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Close the file, if open.
+     *
+     * @throws IOException if the file could not be closed cleanly.
+     */
+    public void close() throws IOException {
+        if (_channel != null) {
+            _channel.close();
+            _channel = null;
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Encode one record into the buffer.
+     *
+     * Names too long to encode are logged and skipped.
+     *
+     * @param buffer the buffer, with at least RECORD_SIZE bytes remaining.
+     * @param uuid the player's UUID.
+     * @param playerName the player's name.
+     * @param firstSeen the first-seen time stamp.
+     */
+    protected static void putRecord(ByteBuffer buffer, UUID uuid, String playerName, long firstSeen) {
+        byte[] name = playerName.getBytes(StandardCharsets.UTF_8);
+        if (name.length > NAME_SIZE) {
+            LastSeen.PLUGIN.getLogger().warning("Cannot save over-long player name " + playerName);
+            return;
+        }
+        buffer.putLong(uuid.getMostSignificantBits()).putLong(uuid.getLeastSignificantBits()).putLong(firstSeen)
+              .put(name);
+        buffer.position(buffer.position() + NAME_SIZE - name.length);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Decode a zero-padded player name.
+     *
+     * @param name the encoded name.
+     * @return the player name.
+     */
+    protected static String decodeName(byte[] name) {
+        int length = 0;
+        while (length < NAME_SIZE && name[length] != 0) {
+            ++length;
+        }
+        return new String(name, 0, length, StandardCharsets.UTF_8);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Identifies the file as a name journal: "LSN" followed by a zero.
+     */
+    protected static final int MAGIC = 0x4C534E00;
+
+    /**
+     * The file format version.
+     */
+    protected static final int VERSION = 1;
+
+    /**
+     * Size of the file header in bytes.
+     */
+    protected static final int HEADER_SIZE = 8;
+
+    /**
+     * Maximum size of an encoded player name in bytes. Minecraft names are at
+     * most 16 ASCII characters.
+     */
+    protected static final int NAME_SIZE = 16;
+
+    /**
+     * Size of one record in bytes.
+     */
+    protected static final int RECORD_SIZE = 24 + NAME_SIZE;
+
+    /**
+     * Number of records read from the file per read() call.
+     */
+    protected static final int READ_BUFFER_RECORDS = 4096;
+
+    /**
+     * The journal file.
+     */
+    protected File _file;
+
+    /**
+     * The channel used to append records, opened on the first write.
+     */
+    protected FileChannel _channel;
+}
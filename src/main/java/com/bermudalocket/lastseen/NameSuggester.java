@@ -0,0 +1,394 @@
+package com.bermudalocket.lastseen;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+// ----------------------------------------------------------------------------
+/**
+ * Suggests known player names close to a misspelt one, for "did you mean"
+ * replies to /seen and /firstseen.
+ *
+ * Each name is split into the bigrams (pairs of adjacent characters) of its
+ * lower case form, padded with a boundary character at each end, so a name of
+ * length L has L + 1 bigrams. By the q-gram lemma, two names within k edits
+ * of each other share at least max(La, Lb) + 1 - 2k bigrams, and their
+ * lengths differ by at most k. The index therefore keeps, for every (bigram,
+ * length) pair, a posting list of the names of that length containing the
+ * bigram. A query counts the shared bigrams of the names in the few length
+ * buckets that qualify, and computes the edit distance only to the names
+ * that pass the count filter. A query with k = 2 over hundreds of thousands
+ * of names takes a fraction of a millisecond, whereas a BK-tree must compute
+ * the distance to a large fraction of the names, taking tens of
+ * milliseconds.
+ *
+ * Characters are folded into a small alphabet (letters, digits, underscore,
+ * boundary and "other") so that the posting lists can be held in an array
+ * indexed by bigram and length rather than a hash map. Folding only merges
+ * bigrams, which can add candidates but never lose one.
+ *
+ * Names are added to a pending list and inserted into the index by merge(),
+ * which works in chunks so that a concurrent suggest() waits for at most one
+ * chunk. suggest() inserts a few pending names itself, but a bulk load must
+ * be merged from a background thread before its names are suggested.
+ *
+ * The NameIndex only adds names whose lower case form is new, so names are
+ * not checked for duplicates here.
+ */
+public class NameSuggester {
+    // ------------------------------------------------------------------------
+    /**
+     * Add a name.
+     *
+     * @param name the name, in its original case.
+     */
+    public synchronized void add(String name) {
+        _pending.add(name);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Insert all pending names into the index.
+     */
+    public void merge() {
+        long start = System.currentTimeMillis();
+        int merged = 0;
+        for (;;) {
+            synchronized (this) {
+                int count = Math.min(MERGE_CHUNK, _pending.size());
+                if (count == 0) {
+                    break;
+                }
+                insertPending(count);
+                merged += count;
+            }
+        }
+
+        if (merged != 0 && LastSeen.PLUGIN.isDebug()) {
+            LastSeen.PLUGIN.getLogger().info("Merged " + merged + " names into the suggestion index of " + _size +
+                                             " names in " + (System.currentTimeMillis() - start) + "ms");
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return up to limit names within maxDistance edits of the specified name,
+     * ignoring case, closest first.
+     *
+     * @param name the misspelt name.
+     * @param maxDistance the maximum Levenshtein distance.
+     * @param limit the maximum number of names to return.
+     * @return the names, in their original case.
+     */
+    public synchronized List<String> suggest(String name, int maxDistance, int limit) {
+        if (!_pending.isEmpty() && _pending.size() <= MAX_INLINE_MERGE) {
+            insertPending(_pending.size());
+        }
+
+        String query = name.toLowerCase();
+        int length = query.length();
+        int[] bigrams = bigrams(query);
+        int[] previous = new int[length + 1];
+        int[] current = new int[length + 1];
+
+        // Matches, packed as (distance << 32 | id), so sorting orders them.
+        long[] matches = new long[16];
+        int matchCount = 0;
+        int[] touched = new int[64];
+        for (int candidateLength = Math.max(1, length - maxDistance);
+             candidateLength <= Math.min(MAX_LENGTH, length + maxDistance); ++candidateLength) {
+            int threshold = Math.max(length, candidateLength) + 1 - 2 * maxDistance;
+            int touchedCount = 0;
+            if (threshold <= 0) {
+                // Too short for the filter; every name of this length qualifies.
+                int[] all = _byLength[candidateLength];
+                int size = _byLengthSizes[candidateLength];
+                for (int i = 0; i < size; ++i) {
+                    if (touchedCount == touched.length) {
+                        touched = Arrays.copyOf(touched, 2 * touchedCount);
+                    }
+                    touched[touchedCount++] = all[i];
+                    _counts[all[i]] = threshold;
+                }
+            } else {
+                for (int bigram : bigrams) {
+                    int slot = bigram * (MAX_LENGTH + 1) + candidateLength;
+                    int[] posting = _postings[slot];
+                    int size = _postingSizes[slot];
+                    for (int i = 0; i < size; ++i) {
+                        int id = posting[i];
+                        if (_counts[id]++ == 0) {
+                            if (touchedCount == touched.length) {
+                                touched = Arrays.copyOf(touched, 2 * touchedCount);
+                            }
+                            touched[touchedCount++] = id;
+                        }
+                    }
+                }
+            }
+
+            for (int i = 0; i < touchedCount; ++i) {
+                int id = touched[i];
+                if (_counts[id] >= threshold) {
+                    int d = distance(query, _keys[id], maxDistance, previous, current);
+                    if (d <= maxDistance) {
+                        if (matchCount == matches.length) {
+                            matches = Arrays.copyOf(matches, 2 * matchCount);
+                        }
+                        matches[matchCount++] = ((long) d << 32) | id;
+                    }
+                }
+                _counts[id] = 0;
+            }
+        }
+
+        Arrays.sort(matches, 0, matchCount);
+        ArrayList<String> names = new ArrayList<>();
+        for (int i = 0; i < matchCount && names.size() < limit; ++i) {
+            names.add(_names[(int) matches[i]]);
+        }
+        return names;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the number of names in the index.
+     *
+     * @return the number of names in the index.
+     */
+    public synchronized int size() {
+        return _size;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Insert the last count pending names into the index and remove them from
+     * the pending list. The caller must hold the lock.
+     *
+     * @param count the number of names.
+     */
+    protected void insertPending(int count) {
+        int end = _pending.size();
+        for (int i = end - count; i < end; ++i) {
+            insert(_pending.get(i));
+        }
+        _pending.subList(end - count, end).clear();
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Insert a name into the index. The caller must hold the lock.
+     *
+     * Names longer than MAX_LENGTH, which Minecraft does not allow, are
+     * ignored.
+     *
+     * @param name the name, in its original case.
+     */
+    protected void insert(String name) {
+        String key = name.toLowerCase();
+        int length = key.length();
+        if (length == 0 || length > MAX_LENGTH) {
+            return;
+        }
+
+        if (_size == _keys.length) {
+            int capacity = Math.max(MIN_CAPACITY, 2 * _size);
+            _names = Arrays.copyOf(_names, capacity);
+            _keys = Arrays.copyOf(_keys, capacity);
+            _counts = Arrays.copyOf(_counts, capacity);
+        }
+        int id = _size++;
+        _names[id] = name;
+        _keys[id] = key;
+
+        _byLength[length] = append(_byLength[length], _byLengthSizes[length]++, id);
+        int[] bigrams = bigrams(key);
+        for (int bigram : bigrams) {
+            int slot = bigram * (MAX_LENGTH + 1) + length;
+            _postings[slot] = append(_postings[slot], _postingSizes[slot]++, id);
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Store a value at the specified index of an array, growing it if
+     * necessary.
+     *
+     * @param array the array, or null.
+     * @param index the index.
+     * @param value the value.
+     * @return the array, or its replacement.
+     */
+    protected static int[] append(int[] array, int index, int value) {
+        if (array == null) {
+            array = new int[4];
+        } else if (index == array.length) {
+            array = Arrays.copyOf(array, 2 * index);
+        }
+        array[index] = value;
+        return array;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the padded bigrams of a lower case name, as indices into the
+     * folded bigram space.
+     *
+     * Repeated bigrams are repeated in the result, so a name appears in a
+     * posting list once per occurrence. The shared count computed by suggest()
+     * is then at least the multiset intersection that the q-gram lemma
+     * bounds.
+     *
+     * @param key the lower case name.
+     * @return the bigrams.
+     */
+    protected static int[] bigrams(String key) {
+        int[] bigrams = new int[key.length() + 1];
+        int previous = BOUNDARY;
+        for (int i = 0; i <= key.length(); ++i) {
+            int next = (i < key.length()) ? fold(key.charAt(i)) : BOUNDARY;
+            bigrams[i] = previous * ALPHABET_SIZE + next;
+            previous = next;
+        }
+        return bigrams;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Map a lower case character into the folded alphabet.
+     *
+     * @param c the character.
+     * @return the folded character, in [0, ALPHABET_SIZE).
+     */
+    protected static int fold(char c) {
+        if (c >= 'a' && c <= 'z') {
+            return c - 'a';
+        } else if (c >= '0' && c <= '9') {
+            return 26 + c - '0';
+        } else if (c == '_') {
+            return 36;
+        } else {
+            return OTHER;
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the Levenshtein distance between two strings, or a value greater
+     * than maxDistance if it exceeds maxDistance.
+     *
+     * @param a the first string.
+     * @param b the second string.
+     * @param maxDistance the largest distance of interest.
+     * @param previous scratch space of at least a.length() + 1 elements.
+     * @param current scratch space of at least a.length() + 1 elements.
+     * @return the minimum number of single character insertions, deletions
+     *         and substitutions that turn a into b, if at most maxDistance.
+     */
+    protected static int distance(String a, String b, int maxDistance, int[] previous, int[] current) {
+        int n = a.length();
+        for (int i = 0; i <= n; ++i) {
+            previous[i] = i;
+        }
+        for (int j = 1; j <= b.length(); ++j) {
+            char c = b.charAt(j - 1);
+            current[0] = j;
+            int rowMin = j;
+            for (int i = 1; i <= n; ++i) {
+                int cost = (a.charAt(i - 1) == c) ? 0 : 1;
+                current[i] = Math.min(Math.min(current[i - 1], previous[i]) + 1, previous[i - 1] + cost);
+                rowMin = Math.min(rowMin, current[i]);
+            }
+            if (rowMin > maxDistance) {
+                return rowMin;
+            }
+            int[] swap = previous;
+            previous = current;
+            current = swap;
+        }
+        return previous[n];
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * The longest name indexed. Minecraft names are at most 16 characters.
+     */
+    protected static final int MAX_LENGTH = 16;
+
+    /**
+     * The folded character for anything other than [a-z0-9_].
+     */
+    protected static final int OTHER = 37;
+
+    /**
+     * The folded character padding both ends of a name.
+     */
+    protected static final int BOUNDARY = 38;
+
+    /**
+     * The number of folded characters.
+     */
+    protected static final int ALPHABET_SIZE = 39;
+
+    /**
+     * The initial number of names allocated.
+     */
+    protected static final int MIN_CAPACITY = 64;
+
+    /**
+     * The maximum number of pending names that merge() inserts per lock hold.
+     */
+    protected static final int MERGE_CHUNK = 1024;
+
+    /**
+     * The maximum number of pending names that suggest() will insert on the
+     * calling thread.
+     */
+    protected static final int MAX_INLINE_MERGE = 1024;
+
+    /**
+     * Names added but not yet inserted into the index.
+     */
+    protected final ArrayList<String> _pending = new ArrayList<>();
+
+    /**
+     * The name with each id, in its original case.
+     */
+    protected String[] _names = new String[0];
+
+    /**
+     * The lower case name with each id.
+     */
+    protected String[] _keys = new String[0];
+
+    /**
+     * Scratch shared-bigram counts, by id; all zero between queries.
+     */
+    protected int[] _counts = new int[0];
+
+    /**
+     * The number of names.
+     */
+    protected int _size;
+
+    /**
+     * Posting lists of name ids, indexed by bigram * (MAX_LENGTH + 1) +
+     * length; null if empty.
+     */
+    protected final int[][] _postings = new int[ALPHABET_SIZE * ALPHABET_SIZE * (MAX_LENGTH + 1)][];
+
+    /**
+     * The number of ids in each posting list.
+     */
+    protected final int[] _postingSizes = new int[_postings.length];
+
+    /**
+     * The ids of all names of each length; null if none.
+     */
+    protected final int[][] _byLength = new int[MAX_LENGTH + 1][];
+
+    /**
+     * The number of ids in each element of _byLength.
+     */
+    protected final int[] _byLengthSizes = new int[MAX_LENGTH + 1];
+}
@@ -0,0 +1,214 @@
+package com.bermudalocket.lastseen;
+
+import java.util.Date;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import org.ocpsoft.prettytime.PrettyTime;
+
+// ----------------------------------------------------------------------------
+/**
+ * Describes time stamps relative to the current time, in English, e.g.
+ * "3 days 4 hours ago".
+ *
+ * The phrasing is PrettyTime's, but PrettyTime's calculatePreciseDuration()
+ * allocates a list of Durations and walks every time unit for each call, and
+ * a PrettyTime instance can only be used by one thread at a time. Instead,
+ * ages are rounded down to a bucket whose width grows with the age: to the
+ * minute under a day, to the hour under 30 days, and to the day beyond that.
+ * Each bucket's rounded age is formatted by PrettyTime once and the string is
+ * cached, so units finer than the bucket, such as the minutes of an age over
+ * a day, are omitted. A lookup in the cache is lock-free and does not
+ * allocate.
+ *
+ * Time stamps in the future, ages of MAX_CACHED_DAYS or more, and every time
+ * stamp when exact phrasing is configured are formatted by PrettyTime on
+ * each call, under a lock.
+ */
+public class RelativeTimeFormatter {
+    // ------------------------------------------------------------------------
+    /**
+     * Constructor.
+     *
+     * @param exact if true, describe every time stamp exactly with PrettyTime
+     *        rather than by bucket.
+     */
+    public RelativeTimeFormatter(boolean exact) {
+        _exact = exact;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Describe a time stamp relative to the current time.
+     *
+     * @param time the time stamp, as milliseconds since epoch.
+     * @return the description, e.g. "3 days 4 hours ago".
+     */
+    public String format(long time) {
+        return format(time, System.currentTimeMillis());
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Describe a time stamp relative to a specified current time.
+     *
+     * @param time the time stamp, as milliseconds since epoch.
+     * @param now the current time, as milliseconds since epoch.
+     * @return the description, e.g. "3 days 4 hours ago".
+     */
+    public String format(long time, long now) {
+        long age = now - time;
+        if (_exact || age < 0) {
+            return formatExactly(time, now);
+        }
+
+        int bucket;
+        long rounded;
+        if (age < DAY) {
+            bucket = (int) (age / MINUTE);
+            rounded = bucket * MINUTE;
+        } else if (age < HOUR_BUCKETS_END) {
+            long hours = age / HOUR;
+            bucket = (int) (HOUR_BUCKETS_START + hours - 24);
+            rounded = hours * HOUR;
+        } else {
+            long days = age / DAY;
+            if (days >= MAX_CACHED_DAYS) {
+                return formatExactly(time, now);
+            }
+            bucket = (int) (DAY_BUCKETS_START + days - HOUR_BUCKETS_END / DAY);
+            rounded = days * DAY;
+        }
+
+        String text = _cache.get(bucket);
+        if (text == null) {
+            // Racing threads format equal strings, so either may win.
+            text = formatExactly(now - rounded, now);
+            _cache.set(bucket, text);
+        }
+        return text;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Describe a time stamp with PrettyTime's precise durations.
+     *
+     * @param time the time stamp, as milliseconds since epoch.
+     * @param now the current time, as milliseconds since epoch.
+     * @return the description.
+     */
+    protected String formatExactly(long time, long now) {
+        synchronized (_prettyTime) {
+            _prettyTime.setReference(new Date(now));
+            return _prettyTime.format(_prettyTime.calculatePreciseDuration(new Date(time)));
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Describe a length of time as its two most significant non-zero units,
+     * e.g. "3 days 4 hours".
+     *
+     * @param duration the length of time, in milliseconds.
+     * @return the description, or "less than a minute".
+     */
+    public static String formatDuration(long duration) {
+        StringBuilder builder = new StringBuilder(32);
+        return appendUnits(builder, duration) ? builder.toString() : "less than a minute";
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Append the two most significant non-zero units of a length of time.
+     *
+     * @param builder the destination.
+     * @param duration the length of time, in milliseconds.
+     * @return true if anything was appended, i.e. the duration is at least
+     *         one minute.
+     */
+    protected static boolean appendUnits(StringBuilder builder, long duration) {
+        int units = 0;
+        for (int i = 0; i < UNIT_LENGTHS.length && units < 2; ++i) {
+            long count = duration / UNIT_LENGTHS[i];
+            if (count != 0) {
+                duration -= count * UNIT_LENGTHS[i];
+                if (units != 0) {
+                    builder.append(' ');
+                }
+                builder.append(count).append(' ').append(UNIT_NAMES[i]);
+                if (count != 1) {
+                    builder.append('s');
+                }
+                ++units;
+            } else if (units != 0) {
+                // Show "1 year" rather than "1 year 3 days".
+                break;
+            }
+        }
+        return units != 0;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Milliseconds per minute.
+     */
+    protected static final long MINUTE = 60 * 1000L;
+
+    /**
+     * Milliseconds per hour.
+     */
+    protected static final long HOUR = 60 * MINUTE;
+
+    /**
+     * Milliseconds per day.
+     */
+    protected static final long DAY = 24 * HOUR;
+
+    /**
+     * The age below which buckets are one hour wide, rather than a day.
+     */
+    protected static final long HOUR_BUCKETS_END = 30 * DAY;
+
+    /**
+     * The index of the first bucket that is an hour wide.
+     */
+    protected static final int HOUR_BUCKETS_START = (int) (DAY / MINUTE);
+
+    /**
+     * The index of the first bucket that is a day wide.
+     */
+    protected static final int DAY_BUCKETS_START = HOUR_BUCKETS_START + (int) ((HOUR_BUCKETS_END - DAY) / HOUR);
+
+    /**
+     * Ages of this many days or more are formatted on each call rather than
+     * cached.
+     */
+    protected static final int MAX_CACHED_DAYS = 20 * 365;
+
+    /**
+     * The lengths of the units shown, longest first. Months and years are
+     * approximated as 30 and 365 days.
+     */
+    protected static final long[] UNIT_LENGTHS = { 365 * DAY, 30 * DAY, DAY, HOUR, MINUTE };
+
+    /**
+     * The singular names of the units in UNIT_LENGTHS.
+     */
+    protected static final String[] UNIT_NAMES = { "year", "month", "day", "hour", "minute" };
+
+    /**
+     * If true, describe every time stamp with PrettyTime.
+     */
+    protected final boolean _exact;
+
+    /**
+     * PrettyTime's description of each bucket's rounded age; null until first
+     * used.
+     */
+    protected final AtomicReferenceArray<String> _cache =
+        new AtomicReferenceArray<>(DAY_BUCKETS_START + MAX_CACHED_DAYS - (int) (HOUR_BUCKETS_END / DAY));
+
+    /**
+     * Used for exact descriptions. Not thread-safe, so guarded by itself.
+     */
+    protected final PrettyTime _prettyTime = new PrettyTime();
+}
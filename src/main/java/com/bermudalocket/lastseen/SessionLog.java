@@ -0,0 +1,228 @@
+package com.bermudalocket.lastseen;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.UUID;
+
+// ----------------------------------------------------------------------------
+/**
+ * An append-only log of completed play sessions.
+ *
+ * The file starts with a HEADER_SIZE byte header (MAGIC, VERSION) followed by
+ * records of RECORD_SIZE bytes:
+ *
+ * <ul>
+ * <li>8 bytes: the most significant bits of the player's UUID.</li>
+ * <li>8 bytes: the least significant bits of the player's UUID.</li>
+ * <li>8 bytes: the time stamp when the session started.</li>
+ * <li>8 bytes: the time stamp when the session ended.</li>
+ * </ul>
+ *
+ * Sessions are buffered in memory and appended in a single write per save,
+ * so recording them adds one sequential write, rather than one per session,
+ * to each save. Playtime totals are kept separately, in a LongStore, so the
+ * log is never read to answer /playtime.
+ *
+ * If the server dies part way through an append, the file may end in a
+ * partial record. That record is discarded and the file truncated when the
+ * log is next read.
+ */
+public class SessionLog {
+    // ------------------------------------------------------------------------
+    /**
+     * A completed play session.
+     */
+    public static final class Session {
+        /**
+         * Constructor.
+         *
+         * @param uuid the player's UUID.
+         * @param start the time stamp when the session started.
+         * @param end the time stamp when the session ended.
+         */
+        public Session(UUID uuid, long start, long end) {
+            this.uuid = uuid;
+            this.start = start;
+            this.end = end;
+        }
+
+        /**
+         * The player's UUID.
+         */
+        public final UUID uuid;
+
+        /**
+         * The time stamp when the session started.
+         */
+        public final long start;
+
+        /**
+         * The time stamp when the session ended.
+         */
+        public final long end;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Receives each session read from the log.
+     */
+    @FunctionalInterface
+    public interface SessionVisitor {
+        /**
+         * Visit one session.
+         *
+         * @param msb the most significant bits of the player's UUID.
+         * @param lsb the least significant bits of the player's UUID.
+         * @param start the time stamp when the session started.
+         * @param end the time stamp when the session ended.
+         */
+        void visit(long msb, long lsb, long start, long end);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Constructor.
+     *
+     * @param file the log file.
+     */
+    public SessionLog(File file) {
+        _file = file;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return true if the log file exists.
+     *
+     * @return true if the log file exists.
+     */
+    public boolean exists() {
+        return _file.exists();
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Read every session in the log, oldest first.
+     *
+     * This must not be called concurrently with write().
+     *
+     * @param visitor receives the sessions.
+     * @throws IOException if the file cannot be read.
+     */
+    public void forEach(SessionVisitor visitor) throws IOException {
+        try (FileChannel channel = FileChannel.open(_file.toPath(), StandardOpenOption.READ,
+                                                    StandardOpenOption.WRITE)) {
+            if (channel.size() == 0) {
+                return;
+            }
+            ByteBuffer buffer = ByteBuffer.allocate(READ_BUFFER_RECORDS * RECORD_SIZE);
+            buffer.limit(HEADER_SIZE);
+            while (buffer.hasRemaining() && channel.read(buffer) > 0) {
+            }
+            buffer.flip();
+            if (buffer.remaining() != HEADER_SIZE || buffer.getInt() != MAGIC) {
+                throw new IOException(_file.getName() + " is not a session log");
+            }
+            int version = buffer.getInt();
+            if (version != VERSION) {
+                throw new IOException(_file.getName() + " has unsupported version " + version);
+            }
+
+            long valid = HEADER_SIZE;
+            buffer.clear();
+            while (channel.read(buffer) > 0) {
+                buffer.flip();
+                while (buffer.remaining() >= RECORD_SIZE) {
+                    visitor.visit(buffer.getLong(), buffer.getLong(), buffer.getLong(), buffer.getLong());
+                    valid += RECORD_SIZE;
+                }
+                buffer.compact();
+            }
+
+            if (channel.size() != valid) {
+                LastSeen.PLUGIN.getLogger().warning("Discarding partial record at the end of " + _file.getName() + ".");
+                channel.truncate(valid);
+            }
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Append the specified sessions to the log.
+     *
+     * @param sessions the sessions.
+     * @throws IOException if the records could not be written.
+     */
+    public void write(List<Session> sessions) throws IOException {
+        if (_channel == null) {
+            _channel = FileChannel.open(_file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+            if (_channel.size() == 0) {
+                ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+                header.putInt(MAGIC).putInt(VERSION).flip();
+                ChannelIO.writeFully(_channel, header);
+            }
+            _channel.position(_channel.size());
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocate(sessions.size() * RECORD_SIZE);
+        for (Session session : sessions) {
+            buffer.putLong(session.uuid.getMostSignificantBits()).putLong(session.uuid.getLeastSignificantBits())
+                  .putLong(session.start).putLong(session.end);
+        }
+        buffer.flip();
+        ChannelIO.writeFully(_channel, buffer);
+        _channel.force(false);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Close the file, if open.
+     *
+     * @throws IOException if the file could not be closed cleanly.
+     */
+    public void close() throws IOException {
+        if (_channel != null) {
+            _channel.close();
+            _channel = null;
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Identifies the file as a session log: "LSL" followed by a zero.
+     */
+    protected static final int MAGIC = 0x4C534C00;
+
+    /**
+     * The file format version.
+     */
+    protected static final int VERSION = 1;
+
+    /**
+     * Size of the file header in bytes.
+     */
+    protected static final int HEADER_SIZE = 8;
+
+    /**
+     * Size of one record in bytes.
+     */
+    protected static final int RECORD_SIZE = 32;
+
+    /**
+     * Number of records read from the file per read() call.
+     */
+    protected static final int READ_BUFFER_RECORDS = 4096;
+
+    /**
+     * The log file.
+     */
+    protected File _file;
+
+    /**
+     * The channel used to append records, opened on the first write.
+     */
+    protected FileChannel _channel;
+}
@@ -0,0 +1,216 @@
+package com.bermudalocket.lastseen;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.Function;
+
+// ----------------------------------------------------------------------------
+/**
+ * Partitions players by UUID hash across a fixed number of shard files, each
+ * stored by its own backend, so that a save only rewrites the shards that
+ * contain changed players.
+ *
+ * This is intended for backends that rewrite their whole file on every
+ * write(), such as the YamlStorageBackend: with N shards, the cost of a save
+ * is proportional to the number of players in the dirty shards, which, when
+ * few players have changed, is about 1/N of all players per changed player.
+ * The dirty shards are written in parallel, on a pool of at most
+ * getShardCount() threads.
+ *
+ * If files of a different layout are found on load, such as the unsharded
+ * file or shards of a different count, their values are loaded, rewritten
+ * into the current shards, and the old files, together with their .bak
+ * generations, are renamed with the suffix ".resharded", so the shard count
+ * can be changed at any time.
+ */
+public class ShardedStorageBackend implements StorageBackend {
+    // ------------------------------------------------------------------------
+    /**
+     * Constructor.
+     *
+     * @param shardFiles the file of each shard, in shard order.
+     * @param previousFiles files of earlier layouts, to be migrated on load.
+     * @param factory creates the backend that stores one file.
+     */
+    public ShardedStorageBackend(File[] shardFiles, List<File> previousFiles,
+                                 Function<File, StorageBackend> factory) {
+        _shards = new StorageBackend[shardFiles.length];
+        for (int i = 0; i < shardFiles.length; ++i) {
+            _shards[i] = factory.apply(shardFiles[i]);
+        }
+        _previousFiles = previousFiles;
+        _factory = factory;
+        _executor = new ForkJoinPool(Math.max(1, Math.min(_shards.length,
+                                                          Runtime.getRuntime().availableProcessors())));
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the number of shards.
+     *
+     * @return the number of shards.
+     */
+    public int getShardCount() {
+        return _shards.length;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the index of the shard that stores the specified player.
+     *
+     * @param uuid the player's UUID.
+     * @return the shard index.
+     */
+    public int getShard(UUID uuid) {
+        return Math.floorMod(uuid.hashCode(), _shards.length);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * @see StorageBackend#exists()
+     */
+    @Override
+    public boolean exists() {
+        if (!_previousFiles.isEmpty()) {
+            return true;
+        }
+        for (StorageBackend shard : _shards) {
+            if (shard.exists()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * @see StorageBackend#load(LongIndex.EntryVisitor)
+     */
+    @Override
+    public SnapshotFile load(LongIndex.EntryVisitor visitor) throws IOException {
+        for (StorageBackend shard : _shards) {
+            if (shard.exists()) {
+                shard.load(visitor);
+            }
+        }
+
+        if (!_previousFiles.isEmpty()) {
+            HashMap<UUID, Long> migrated = new HashMap<>();
+            for (File file : _previousFiles) {
+                StorageBackend previous = _factory.apply(file);
+                previous.load((msb, lsb, value) -> {
+                    visitor.visit(msb, lsb, value);
+                    migrated.put(new UUID(msb, lsb), value);
+                });
+                previous.close();
+            }
+            write(migrated);
+            for (File file : _previousFiles) {
+                new AtomicFile(file).moveTo(new File(file.getPath() + ".resharded"));
+            }
+            LastSeen.PLUGIN.getLogger().info("Moved " + migrated.size() + " entries from " + _previousFiles.size() +
+                                             " files into " + _shards.length + " shards.");
+            _previousFiles = new ArrayList<>();
+        }
+        return null;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Write each dirty shard's changes in parallel; clean shards are not
+     * touched.
+     *
+     * @see StorageBackend#write(Map)
+     */
+    @Override
+    public void write(Map<UUID, Long> changes) throws IOException {
+        List<Map<UUID, Long>> shardChanges = new ArrayList<>(_shards.length);
+        for (int i = 0; i < _shards.length; ++i) {
+            shardChanges.add(null);
+        }
+        for (Map.Entry<UUID, Long> entry : changes.entrySet()) {
+            int shard = getShard(entry.getKey());
+            Map<UUID, Long> dirty = shardChanges.get(shard);
+            if (dirty == null) {
+                dirty = new HashMap<>();
+                shardChanges.set(shard, dirty);
+            }
+            dirty.put(entry.getKey(), entry.getValue());
+        }
+
+        List<CompletableFuture<Void>> writes = new ArrayList<>();
+        for (int i = 0; i < _shards.length; ++i) {
+            StorageBackend shard = _shards[i];
+            Map<UUID, Long> dirty = shardChanges.get(i);
+            if (dirty != null) {
+                writes.add(CompletableFuture.runAsync(() -> {
+                    try {
+                        shard.write(dirty);
+                    } catch (IOException ex) {
+                        throw new CompletionException(ex);
+                    }
+                }, _executor));
+            }
+        }
+
+        // Wait for every shard, even if one fails, before reporting failure.
+        IOException error = null;
+        for (CompletableFuture<Void> write : writes) {
+            try {
+                write.join();
+            } catch (CompletionException ex) {
+                if (error == null) {
+                    error = (ex.getCause() instanceof IOException) ? (IOException) ex.getCause()
+                                                                   : new IOException(ex.getCause());
+                }
+            }
+        }
+        if (error != null) {
+            throw error;
+        }
+        if (LastSeen.PLUGIN.isDebug()) {
+            LastSeen.PLUGIN.getLogger().info("Wrote " + writes.size() + " of " + _shards.length + " shards.");
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * @see StorageBackend#close()
+     */
+    @Override
+    public void close() throws IOException {
+        _executor.shutdown();
+        for (StorageBackend shard : _shards) {
+            shard.close();
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * The backend of each shard.
+     */
+    protected StorageBackend[] _shards;
+
+    /**
+     * Files of earlier layouts, still to be migrated.
+     */
+    protected List<File> _previousFiles;
+
+    /**
+     * Creates the backend that stores one file.
+     */
+    protected Function<File, StorageBackend> _factory;
+
+    /**
+     * Writes dirty shards in parallel.
+     */
+    protected ForkJoinPool _executor;
+}
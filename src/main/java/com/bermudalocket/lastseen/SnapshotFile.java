@@ -0,0 +1,377 @@
+package com.bermudalocket.lastseen;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+// ----------------------------------------------------------------------------
+/**
+ * A read-only, memory-mapped snapshot of (UUID, value) records, sorted by UUID
+ * so that they can be queried in place by binary search.
+ *
+ * The file consists of a HEADER_SIZE byte header (MAGIC, VERSION, generation,
+ * record count) followed by RECORD_SIZE byte records:
+ *
+ * <ul>
+ * <li>8 bytes: the most significant bits of the player's UUID.</li>
+ * <li>8 bytes: the least significant bits of the player's UUID.</li>
+ * <li>8 bytes: the value.</li>
+ * </ul>
+ *
+ * Records are in ascending order of (msb, lsb), compared as signed longs, with
+ * no duplicates.
+ *
+ * Opening a snapshot only validates the header and maps the file, so it takes
+ * constant time regardless of the number of records. Pages are read from disk
+ * by the operating system as lookups touch them, and they are held outside of
+ * the Java heap. A lookup touches at most log2(n) records.
+ *
+ * Instances are immutable and thread-safe.
+ */
+public class SnapshotFile {
+    // ------------------------------------------------------------------------
+    /**
+     * Open and map a snapshot file.
+     *
+     * @param file the file.
+     * @return the snapshot.
+     * @throws IOException if the file cannot be mapped or is not a valid
+     *         snapshot.
+     */
+    public static SnapshotFile open(File file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size < HEADER_SIZE || size > Integer.MAX_VALUE) {
+                throw new IOException(file.getName() + " has an invalid size");
+            }
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION) {
+                throw new IOException(file.getName() + " is not a last-seen snapshot");
+            }
+            long count = buffer.getLong(16);
+            if (HEADER_SIZE + count * RECORD_SIZE != size) {
+                throw new IOException(file.getName() + " is truncated");
+            }
+            return new SnapshotFile(file, buffer, buffer.getLong(8), (int) count);
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Write a new snapshot containing the records of a base snapshot overlaid
+     * with changes.
+     *
+     * The records are written directly to the specified file, which is synced
+     * before returning. Callers should write to a temporary file and rename
+     * it into place.
+     *
+     * @param file the file to write.
+     * @param generation the generation number to record in the header.
+     * @param base the base snapshot, or null if there is none.
+     * @param changes entries that replace or add to those of base.
+     * @return the number of records written.
+     * @throws IOException if the file cannot be written.
+     */
+    public static long write(File file, long generation, SnapshotFile base, LongIndex changes) throws IOException {
+        // Sort the changes in the same order as the snapshot.
+        int n = changes.size();
+        long[] msbs = new long[n];
+        long[] lsbs = new long[n];
+        long[] values = new long[n];
+        int[] count = new int[1];
+        changes.forEach((msb, lsb, value) -> {
+            msbs[count[0]] = msb;
+            lsbs[count[0]] = lsb;
+            values[count[0]] = value;
+            ++count[0];
+        });
+        sort(msbs, lsbs, values, 0, n - 1);
+
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+                                                    StandardOpenOption.WRITE,
+                                                    StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer buffer = ByteBuffer.allocate(WRITE_BUFFER_RECORDS * RECORD_SIZE);
+
+            // Reserve space for the header, which needs the record count.
+            buffer.put(new byte[HEADER_SIZE]);
+            int i = 0;
+            int j = 0;
+            int baseCount = (base != null) ? base.size() : 0;
+            long written = 0;
+            while (i < baseCount || j < n) {
+                int order;
+                if (i == baseCount) {
+                    order = 1;
+                } else if (j == n) {
+                    order = -1;
+                } else {
+                    order = compare(base.getMsb(i), base.getLsb(i), msbs[j], lsbs[j]);
+                }
+
+                if (order < 0) {
+                    buffer.putLong(base.getMsb(i)).putLong(base.getLsb(i)).putLong(base.getValue(i));
+                    ++i;
+                } else {
+                    buffer.putLong(msbs[j]).putLong(lsbs[j]).putLong(values[j]);
+                    ++j;
+                    if (order == 0) {
+                        ++i;
+                    }
+                }
+                ++written;
+
+                if (!buffer.hasRemaining()) {
+                    buffer.flip();
+                    ChannelIO.writeFully(channel, buffer);
+                    buffer.clear();
+                }
+            }
+            buffer.flip();
+            ChannelIO.writeFully(channel, buffer);
+
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            header.putInt(MAGIC).putInt(VERSION).putLong(generation).putLong(written).flip();
+            channel.position(0);
+            ChannelIO.writeFully(channel, header);
+            channel.force(true);
+            return written;
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the file.
+     *
+     * @return the file.
+     */
+    public File getFile() {
+        return _file;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the generation number recorded in the header.
+     *
+     * @return the generation number.
+     */
+    public long getGeneration() {
+        return _generation;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the number of records.
+     *
+     * @return the number of records.
+     */
+    public int size() {
+        return _count;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the value associated with the specified UUID.
+     *
+     * @param msb the most significant bits of the UUID.
+     * @param lsb the least significant bits of the UUID.
+     * @param missing the value to return if the UUID is not present.
+     * @return the value, or missing if the UUID is not present.
+     */
+    public long get(long msb, long lsb, long missing) {
+        int low = 0;
+        int high = _count - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int order = compare(getMsb(mid), getLsb(mid), msb, lsb);
+            if (order < 0) {
+                low = mid + 1;
+            } else if (order > 0) {
+                high = mid - 1;
+            } else {
+                return getValue(mid);
+            }
+        }
+        return missing;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Visit every record, in ascending order of UUID.
+     *
+     * @param visitor receives the records.
+     */
+    public void forEach(LongIndex.EntryVisitor visitor) {
+        for (int i = 0; i < _count; ++i) {
+            visitor.visit(getMsb(i), getLsb(i), getValue(i));
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Constructor.
+     *
+     * @param file the file.
+     * @param buffer the mapped file.
+     * @param generation the generation number.
+     * @param count the number of records.
+     */
+    protected SnapshotFile(File file, MappedByteBuffer buffer, long generation, int count) {
+        _file = file;
+        _buffer = buffer;
+        _generation = generation;
+        _count = count;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the most significant bits of the UUID of the i'th record.
+     *
+     * @param i the record index.
+     * @return the most significant bits.
+     */
+    protected long getMsb(int i) {
+        return _buffer.getLong(HEADER_SIZE + i * RECORD_SIZE);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the least significant bits of the UUID of the i'th record.
+     *
+     * @param i the record index.
+     * @return the least significant bits.
+     */
+    protected long getLsb(int i) {
+        return _buffer.getLong(HEADER_SIZE + i * RECORD_SIZE + 8);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the value of the i'th record.
+     *
+     * @param i the record index.
+     * @return the value.
+     */
+    protected long getValue(int i) {
+        return _buffer.getLong(HEADER_SIZE + i * RECORD_SIZE + 16);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Compare two UUIDs in snapshot order.
+     *
+     * @return negative, zero or positive as the first UUID is less than, equal
+     *         to or greater than the second.
+     */
+    protected static int compare(long msb1, long lsb1, long msb2, long lsb2) {
+        int order = Long.compare(msb1, msb2);
+        return (order != 0) ? order : Long.compare(lsb1, lsb2);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Sort parallel arrays of UUIDs and values, in snapshot order, between
+     * indices low and high inclusive.
+     */
+    protected static void sort(long[] msbs, long[] lsbs, long[] values, int low, int high) {
+        while (high - low > 16) {
+            int mid = (low + high) >>> 1;
+            long pivotMsb = msbs[mid];
+            long pivotLsb = lsbs[mid];
+            int i = low;
+            int j = high;
+            while (i <= j) {
+                while (compare(msbs[i], lsbs[i], pivotMsb, pivotLsb) < 0) {
+                    ++i;
+                }
+                while (compare(msbs[j], lsbs[j], pivotMsb, pivotLsb) > 0) {
+                    --j;
+                }
+                if (i <= j) {
+                    swap(msbs, lsbs, values, i++, j--);
+                }
+            }
+
+            // Recurse into the smaller partition to bound stack depth.
+            if (j - low < high - i) {
+                sort(msbs, lsbs, values, low, j);
+                low = i;
+            } else {
+                sort(msbs, lsbs, values, i, high);
+                high = j;
+            }
+        }
+
+        for (int i = low + 1; i <= high; ++i) {
+            for (int j = i; j > low && compare(msbs[j - 1], lsbs[j - 1], msbs[j], lsbs[j]) > 0; --j) {
+                swap(msbs, lsbs, values, j - 1, j);
+            }
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Swap two elements of parallel arrays.
+     */
+    protected static void swap(long[] msbs, long[] lsbs, long[] values, int i, int j) {
+        long t = msbs[i];
+        msbs[i] = msbs[j];
+        msbs[j] = t;
+        t = lsbs[i];
+        lsbs[i] = lsbs[j];
+        lsbs[j] = t;
+        t = values[i];
+        values[i] = values[j];
+        values[j] = t;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Identifies the file as a last-seen snapshot: "LSS" followed by a zero.
+     */
+    protected static final int MAGIC = 0x4C535300;
+
+    /**
+     * The file format version.
+     */
+    protected static final int VERSION = 1;
+
+    /**
+     * Size of the file header in bytes.
+     */
+    protected static final int HEADER_SIZE = 24;
+
+    /**
+     * Size of one record in bytes.
+     */
+    protected static final int RECORD_SIZE = 24;
+
+    /**
+     * Number of records buffered per write() call.
+     */
+    protected static final int WRITE_BUFFER_RECORDS = 4096;
+
+    /**
+     * The file.
+     */
+    protected final File _file;
+
+    /**
+     * The mapped contents of the file. Only absolute get methods are used, so
+     * the buffer's position is never modified and it can be shared between
+     * threads.
+     */
+    protected final MappedByteBuffer _buffer;
+
+    /**
+     * The generation number.
+     */
+    protected final long _generation;
+
+    /**
+     * The number of records.
+     */
+    protected final int _count;
+}
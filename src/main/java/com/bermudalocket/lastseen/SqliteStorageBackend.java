@@ -0,0 +1,338 @@
+package com.bermudalocket.lastseen;
+
+import java.io.File;
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+
+// ----------------------------------------------------------------------------
+/**
+ * Stores per-player values in a table of an embedded SQLite database,
+ * lastseen.db, using the SQLite JDBC driver bundled with CraftBukkit and
+ * Spigot.
+ *
+ * Each kind of value has its own table, named after the store with hyphens
+ * replaced by underscores (e.g. last_seen and playtime), of the form:
+ *
+ * <pre>
+ * CREATE TABLE last_seen (
+ *     msb INTEGER NOT NULL,
+ *     lsb INTEGER NOT NULL,
+ *     value INTEGER NOT NULL,
+ *     PRIMARY KEY (msb, lsb)) WITHOUT ROWID;
+ * </pre>
+ *
+ * The primary key is the player's UUID, split into its two signed 64-bit
+ * halves, so that a lookup or upsert is one B-tree probe on two integers.
+ * There is no index on the value: the plugin answers /recent and /inactive
+ * from the TimeIndex, which also holds changes not yet saved, and only ever
+ * reads a table in full on load, so such an index would only add a second
+ * B-tree update to every upsert. The value index (e.g. last_seen_value)
+ * created by earlier versions is dropped when the table is opened.
+ *
+ * write() upserts the changed values with one prepared statement, executed
+ * in batches of BATCH_SIZE rows within a single transaction, so a save costs
+ * one journal sync rather than one per player. Like every backend, it is
+ * called only from the DataStorage save thread.
+ *
+ * The backends of all tables in one database file share a single connection,
+ * which is opened by the first and closed by the last of them, so that the
+ * stores never contend for SQLite's write lock (SQLITE_BUSY). Each backend
+ * uses the connection under its lock, so one table's transaction is never
+ * interleaved with another's.
+ *
+ * The database uses SQLite's WAL journal mode with full synchronization, so a
+ * committed save survives a crash; WriteAheadLog segments are only deleted
+ * once write() has returned.
+ */
+public class SqliteStorageBackend implements StorageBackend {
+    // ------------------------------------------------------------------------
+    /**
+     * Constructor.
+     *
+     * @param file the database file.
+     * @param name the name of the store, e.g. "last-seen", from which the
+     *        table name is derived.
+     */
+    public SqliteStorageBackend(File file, String name) {
+        _file = file;
+        _table = name.replace('-', '_');
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * @see StorageBackend#exists()
+     */
+    @Override
+    public boolean exists() {
+        return _file.length() > 0;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * @see StorageBackend#load(LongIndex.EntryVisitor)
+     */
+    @Override
+    public SnapshotFile load(LongIndex.EntryVisitor visitor) throws IOException {
+        Connection connection = getConnection();
+        synchronized (connection) {
+            try (Statement statement = connection.createStatement();
+                 ResultSet rows = statement.executeQuery("SELECT msb, lsb, value FROM " + _table)) {
+                while (rows.next()) {
+                    visitor.visit(rows.getLong(1), rows.getLong(2), rows.getLong(3));
+                }
+                // End the read transaction, so that it does not pin the WAL.
+                connection.commit();
+            } catch (SQLException ex) {
+                throw new IOException("cannot read " + _table + " from " + _file.getName() + ": " +
+                                      ex.getMessage(), ex);
+            }
+        }
+        return null;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * @see StorageBackend#write(Map)
+     */
+    @Override
+    public void write(Map<UUID, Long> changes) throws IOException {
+        Connection connection = getConnection();
+        synchronized (connection) {
+            writeLocked(connection, changes);
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Upsert the changes in one transaction, with the connection's lock held.
+     *
+     * @param connection the connection.
+     * @param changes the changes.
+     * @throws IOException if the changes could not be written; the
+     *         transaction is then rolled back.
+     */
+    protected void writeLocked(Connection connection, Map<UUID, Long> changes) throws IOException {
+        try {
+            int batched = 0;
+            for (Map.Entry<UUID, Long> entry : changes.entrySet()) {
+                _upsert.setLong(1, entry.getKey().getMostSignificantBits());
+                _upsert.setLong(2, entry.getKey().getLeastSignificantBits());
+                _upsert.setLong(3, entry.getValue());
+                _upsert.addBatch();
+                if (++batched == BATCH_SIZE) {
+                    _upsert.executeBatch();
+                    batched = 0;
+                }
+            }
+            if (batched != 0) {
+                _upsert.executeBatch();
+            }
+            connection.commit();
+        } catch (SQLException ex) {
+            try {
+                _upsert.clearBatch();
+                connection.rollback();
+            } catch (SQLException rollbackEx) {
+                LastSeen.PLUGIN.getLogger().severe("Cannot roll back " + _table + ": " + rollbackEx.getMessage());
+            }
+            throw new IOException("cannot write " + _table + " to " + _file.getName() + ": " + ex.getMessage(), ex);
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * @see StorageBackend#close()
+     */
+    @Override
+    public void close() throws IOException {
+        if (_connection != null) {
+            try {
+                synchronized (_connection) {
+                    _upsert.close();
+                }
+                release(_key);
+            } catch (SQLException ex) {
+                throw new IOException("cannot close " + _file.getName() + ": " + ex.getMessage(), ex);
+            } finally {
+                _connection = null;
+                _upsert = null;
+            }
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the connection to the database, creating the table if
+     * necessary.
+     *
+     * The connection is shared with the other backends of the same database
+     * file, and does not auto-commit; write() commits each save as one
+     * transaction.
+     *
+     * @return the connection.
+     * @throws IOException if the database cannot be opened.
+     */
+    protected Connection getConnection() throws IOException {
+        if (_connection == null) {
+            String key = _file.getAbsoluteFile().toPath().normalize().toString();
+            Connection connection = acquire(key, _file);
+            synchronized (connection) {
+                try (Statement statement = connection.createStatement()) {
+                    statement.execute("CREATE TABLE IF NOT EXISTS " + _table + " (" +
+                                      "msb INTEGER NOT NULL, lsb INTEGER NOT NULL, value INTEGER NOT NULL, " +
+                                      "PRIMARY KEY (msb, lsb)) WITHOUT ROWID");
+                    statement.execute("DROP INDEX IF EXISTS " + _table + "_value");
+                    connection.commit();
+                    _upsert = connection.prepareStatement("INSERT OR REPLACE INTO " + _table +
+                                                          " (msb, lsb, value) VALUES (?, ?, ?)");
+                } catch (SQLException ex) {
+                    IOException error = new IOException("cannot create " + _table + " in " + _file.getName() +
+                                                        ": " + ex.getMessage(), ex);
+                    try {
+                        release(key);
+                    } catch (SQLException closeEx) {
+                        error.addSuppressed(closeEx);
+                    }
+                    throw error;
+                }
+            }
+            _key = key;
+            _connection = connection;
+        }
+        return _connection;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the shared connection to a database file, opening it if no
+     * backend is using it, and count the reference.
+     *
+     * @param key the normalised absolute path of the database file.
+     * @param file the database file.
+     * @return the connection.
+     * @throws IOException if the database cannot be opened.
+     */
+    protected static Connection acquire(String key, File file) throws IOException {
+        synchronized (CONNECTIONS) {
+            SharedConnection shared = CONNECTIONS.get(key);
+            if (shared == null) {
+                try {
+                    // Older drivers do not register themselves with the
+                    // plugin's class loader.
+                    Class.forName(DRIVER_CLASS);
+                    Connection connection = DriverManager.getConnection("jdbc:sqlite:" + file.getPath());
+                    try (Statement statement = connection.createStatement()) {
+                        statement.execute("PRAGMA journal_mode=WAL");
+                        statement.execute("PRAGMA synchronous=FULL");
+                        connection.setAutoCommit(false);
+                    } catch (SQLException ex) {
+                        connection.close();
+                        throw ex;
+                    }
+                    shared = new SharedConnection(connection);
+                    CONNECTIONS.put(key, shared);
+                } catch (ClassNotFoundException ex) {
+                    throw new IOException("the SQLite JDBC driver is not available", ex);
+                } catch (SQLException ex) {
+                    throw new IOException("cannot open " + file.getName() + ": " + ex.getMessage(), ex);
+                }
+            }
+            ++shared.references;
+            return shared.connection;
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Drop a reference to the shared connection to a database file, closing
+     * it if that was the last.
+     *
+     * @param key the normalised absolute path of the database file.
+     * @throws SQLException if the connection could not be closed cleanly.
+     */
+    protected static void release(String key) throws SQLException {
+        synchronized (CONNECTIONS) {
+            SharedConnection shared = CONNECTIONS.get(key);
+            if (shared != null && --shared.references == 0) {
+                CONNECTIONS.remove(key);
+                shared.connection.close();
+            }
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * A connection and the number of backends using it.
+     */
+    protected static final class SharedConnection {
+        /**
+         * Constructor.
+         *
+         * @param connection the connection.
+         */
+        SharedConnection(Connection connection) {
+            this.connection = connection;
+        }
+
+        /**
+         * The connection.
+         */
+        final Connection connection;
+
+        /**
+         * The number of backends using the connection. Guarded by
+         * CONNECTIONS.
+         */
+        int references;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * The class name of the SQLite JDBC driver.
+     */
+    protected static final String DRIVER_CLASS = "org.sqlite.JDBC";
+
+    /**
+     * The number of rows upserted per executeBatch() call.
+     */
+    protected static final int BATCH_SIZE = 1000;
+
+    /**
+     * The open connections, by normalised absolute database path. Guarded by
+     * itself.
+     */
+    protected static final HashMap<String, SharedConnection> CONNECTIONS = new HashMap<>();
+
+    /**
+     * The database file.
+     */
+    protected File _file;
+
+    /**
+     * The name of the table.
+     */
+    protected String _table;
+
+    /**
+     * The key of _connection in CONNECTIONS, or null.
+     */
+    protected String _key;
+
+    /**
+     * The shared connection, or null if not yet acquired.
+     */
+    protected Connection _connection;
+
+    /**
+     * The prepared upsert statement of _connection.
+     */
+    protected PreparedStatement _upsert;
+}
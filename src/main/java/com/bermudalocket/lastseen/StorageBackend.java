@@ -0,0 +1,99 @@
+package com.bermudalocket.lastseen;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.UUID;
+
+// ----------------------------------------------------------------------------
+/**
+ * The persistence layer behind DataStorage.
+ *
+ * Each LongStore in DataStorage, such as the last-seen time stamps, keeps its
+ * values in memory, keyed by player UUID, and tells its backend only which of
+ * them changed since the previous flush.
+ * How those changes reach the disk is up to the implementation: the YAML
+ * backend rewrites its whole document, whereas the journal backend appends
+ * fixed-size records.
+ *
+ * A backend may keep part of its data in a SnapshotFile that is queried in
+ * place rather than loaded into memory. DataStorage then holds only the
+ * entries that are newer than the snapshot.
+ *
+ * Backends that accumulate superseded records can also be compacted: the
+ * in-memory entries are merged into a new snapshot, discarding history.
+ *
+ * load() is called once, from the constructing thread. After that, write(),
+ * compact() and close() are only ever called from one thread at a time, so
+ * implementations need not be thread-safe.
+ */
+public interface StorageBackend {
+    // ------------------------------------------------------------------------
+    /**
+     * Return true if this backend has previously stored any data.
+     *
+     * @return true if this backend has previously stored any data.
+     */
+    boolean exists();
+
+    // ------------------------------------------------------------------------
+    /**
+     * Read all stored records that are not in the snapshot, passing each
+     * (UUID, value) pair to the visitor. If the same player is visited
+     * more than once, the last visit wins. Visited records supersede those of
+     * the snapshot.
+     *
+     * @param visitor receives the records.
+     * @return the snapshot holding the remaining records, or null if all
+     *         records were visited.
+     * @throws IOException if the stored data cannot be read.
+     */
+    SnapshotFile load(LongIndex.EntryVisitor visitor) throws IOException;
+
+    // ------------------------------------------------------------------------
+    /**
+     * Persist the values that changed since the previous call.
+     *
+     * @param changes map from player UUID to value.
+     * @throws IOException if the changes could not be written.
+     */
+    void write(Map<UUID, Long> changes) throws IOException;
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return true if the stored data has grown enough relative to the number
+     * of live entries that it should be compacted.
+     *
+     * @param liveEntries the number of players currently stored, approximately.
+     * @return true if compact() should be called.
+     */
+    default boolean needsCompaction(int liveEntries) {
+        return false;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Replace the stored data with the current snapshot overlaid with the
+     * specified changes.
+     *
+     * The changes must include every change previously passed to write() that
+     * is not in the current snapshot. They are a private copy, so they are not
+     * modified during the call.
+     *
+     * @param changes index from player UUID to value.
+     * @return the new snapshot, which replaces the one returned by load() or
+     *         the previous compact().
+     * @throws IOException if the compacted data could not be written; the
+     *         previously stored data is then unaffected.
+     */
+    default SnapshotFile compact(LongIndex changes) throws IOException {
+        return null;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Release any open files.
+     *
+     * @throws IOException if the files could not be closed cleanly.
+     */
+    void close() throws IOException;
+}
@@ -0,0 +1,468 @@
+package com.bermudalocket.lastseen;
+
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+// ----------------------------------------------------------------------------
+/**
+ * A secondary index of players ordered by last-seen time stamp, for /recent
+ * and /inactive.
+ *
+ * Entries are held in parallel primitive arrays sorted by (time stamp, UUID),
+ * so a range query is a binary search for the first entry in range followed
+ * by a scan: O(log n + k) for k entries skipped or returned, with no per-entry
+ * objects except those returned.
+ *
+ * Inserting into a sorted array costs O(n), so add() instead appends to a
+ * small unsorted list of recent entries, which queries scan linearly. The
+ * recent entries are sorted and merged into a new sorted array by merge(),
+ * which should be called periodically from a background thread. The sorted
+ * arrays are never modified once published.
+ *
+ * Changing a player's time stamp does not remove the old entry. Instead,
+ * entries are checked against the current time stamp, so superseded entries
+ * are skipped by queries and dropped by the next merge().
+ */
+public class TimeIndex {
+    // ------------------------------------------------------------------------
+    /**
+     * Tells the index whether an entry is still current.
+     */
+    public interface CurrentCheck {
+        /**
+         * Return true if the time stamp is the player's current one.
+         *
+         * @param msb the most significant bits of the player's UUID.
+         * @param lsb the least significant bits of the player's UUID.
+         * @param time the time stamp.
+         * @return true if the time stamp is the player's current one.
+         */
+        boolean isCurrent(long msb, long lsb, long time);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Constructor.
+     *
+     * @param check tells whether entries are current.
+     */
+    public TimeIndex(CurrentCheck check) {
+        _check = check;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Add an entry, superseding any earlier entry for the same player.
+     *
+     * @param msb the most significant bits of the player's UUID.
+     * @param lsb the least significant bits of the player's UUID.
+     * @param time the time stamp.
+     */
+    public synchronized void add(long msb, long lsb, long time) {
+        ensureRecentCapacity(_recentSize + 1);
+        _recentTimes[_recentSize] = time;
+        _recentMsbs[_recentSize] = msb;
+        _recentLsbs[_recentSize] = lsb;
+        ++_recentSize;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Add entries for several players with the same time stamp, superseding
+     * any earlier entries for those players.
+     *
+     * @param msbs the most significant bits of the players' UUIDs.
+     * @param lsbs the least significant bits of the players' UUIDs.
+     * @param count the number of players in msbs and lsbs.
+     * @param time the time stamp.
+     */
+    public synchronized void addAll(long[] msbs, long[] lsbs, int count, long time) {
+        ensureRecentCapacity(_recentSize + count);
+        Arrays.fill(_recentTimes, _recentSize, _recentSize + count, time);
+        System.arraycopy(msbs, 0, _recentMsbs, _recentSize, count);
+        System.arraycopy(lsbs, 0, _recentLsbs, _recentSize, count);
+        _recentSize += count;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Grow the recent arrays, if necessary, to hold the specified number of
+     * entries. The caller must hold the lock.
+     *
+     * @param size the required number of entries.
+     */
+    protected void ensureRecentCapacity(int size) {
+        if (size > _recentTimes.length) {
+            int capacity = Math.max(Math.max(MIN_CAPACITY, 2 * _recentTimes.length), size);
+            _recentTimes = Arrays.copyOf(_recentTimes, capacity);
+            _recentMsbs = Arrays.copyOf(_recentMsbs, capacity);
+            _recentLsbs = Arrays.copyOf(_recentLsbs, capacity);
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Mark the index as holding every stored player.
+     *
+     * Until this is called, queries may omit players who have not been added
+     * yet.
+     */
+    public void setComplete() {
+        _complete = true;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return true if the index holds every stored player.
+     *
+     * @return true if the index holds every stored player.
+     */
+    public boolean isComplete() {
+        return _complete;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return true if there are entries that have not been merged.
+     *
+     * @return true if there are entries that have not been merged.
+     */
+    public synchronized boolean hasRecent() {
+        return _recentSize != 0;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Sort the recent entries and merge them into a new sorted array, dropping
+     * entries that are no longer current.
+     *
+     * This takes O(r log r + n) time for r recent and n sorted entries, but
+     * holds the lock only to copy the recent entries and to publish the
+     * result, so it does not block add(). It must not be called concurrently
+     * with itself.
+     */
+    public void merge() {
+        long start = System.currentTimeMillis();
+        Sorted sorted;
+        long[] times;
+        long[] msbs;
+        long[] lsbs;
+        int count;
+        synchronized (this) {
+            sorted = _sorted;
+            count = _recentSize;
+            times = Arrays.copyOf(_recentTimes, count);
+            msbs = Arrays.copyOf(_recentMsbs, count);
+            lsbs = Arrays.copyOf(_recentLsbs, count);
+        }
+        if (count == 0) {
+            return;
+        }
+        sort(times, msbs, lsbs, 0, count - 1);
+
+        int capacity = sorted.times.length + count;
+        Sorted merged = new Sorted(new long[capacity], new long[capacity], new long[capacity]);
+        int i = 0;
+        int j = 0;
+        int n = 0;
+        while (i < sorted.times.length || j < count) {
+            long time;
+            long msb;
+            long lsb;
+            if (j == count ||
+                (i < sorted.times.length &&
+                 compare(sorted.times[i], sorted.msbs[i], sorted.lsbs[i], times[j], msbs[j], lsbs[j]) <= 0)) {
+                time = sorted.times[i];
+                msb = sorted.msbs[i];
+                lsb = sorted.lsbs[i];
+                ++i;
+            } else {
+                time = times[j];
+                msb = msbs[j];
+                lsb = lsbs[j];
+                ++j;
+            }
+            if (_check.isCurrent(msb, lsb, time) &&
+                (n == 0 || compare(merged.times[n - 1], merged.msbs[n - 1], merged.lsbs[n - 1], time, msb, lsb) != 0)) {
+                merged.times[n] = time;
+                merged.msbs[n] = msb;
+                merged.lsbs[n] = lsb;
+                ++n;
+            }
+        }
+        if (n != capacity) {
+            merged = new Sorted(Arrays.copyOf(merged.times, n), Arrays.copyOf(merged.msbs, n),
+                                Arrays.copyOf(merged.lsbs, n));
+        }
+
+        synchronized (this) {
+            _sorted = merged;
+            // Keep entries added since the copy, releasing the space used by
+            // a bulk load.
+            int remaining = _recentSize - count;
+            int recentCapacity = (_recentTimes.length > 4 * Math.max(MIN_CAPACITY, remaining))
+                ? Math.max(MIN_CAPACITY, 2 * remaining) : _recentTimes.length;
+            _recentTimes = shift(_recentTimes, count, remaining, recentCapacity);
+            _recentMsbs = shift(_recentMsbs, count, remaining, recentCapacity);
+            _recentLsbs = shift(_recentLsbs, count, remaining, recentCapacity);
+            _recentSize = remaining;
+        }
+
+        if (LastSeen.PLUGIN.isDebug()) {
+            LastSeen.PLUGIN.getLogger().info("Merged " + count + " time stamps into the time index of " + n +
+                                             " players in " + (System.currentTimeMillis() - start) + "ms");
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the current entries with time stamps in [from, to), in time
+     * stamp order, after skipping the first skip of them.
+     *
+     * @param from the earliest time stamp, inclusive.
+     * @param to the latest time stamp, exclusive.
+     * @param newestFirst if true, return the latest time stamps first.
+     * @param skip the number of entries to skip, for paging.
+     * @param limit the maximum number of entries to return.
+     * @return the players' UUIDs and time stamps.
+     */
+    public List<Map.Entry<UUID, Long>> find(long from, long to, boolean newestFirst, int skip, int limit) {
+        Sorted sorted;
+        long[] times;
+        long[] msbs;
+        long[] lsbs;
+        int count = 0;
+        synchronized (this) {
+            // Read both under the lock, so that a concurrent merge() is seen
+            // either entirely or not at all.
+            sorted = _sorted;
+            times = new long[Math.min(_recentSize, MIN_CAPACITY)];
+            msbs = new long[times.length];
+            lsbs = new long[times.length];
+            for (int i = 0; i < _recentSize; ++i) {
+                long time = _recentTimes[i];
+                if (time >= from && time < to) {
+                    if (count == times.length) {
+                        times = Arrays.copyOf(times, 2 * count);
+                        msbs = Arrays.copyOf(msbs, 2 * count);
+                        lsbs = Arrays.copyOf(lsbs, 2 * count);
+                    }
+                    times[count] = time;
+                    msbs[count] = _recentMsbs[i];
+                    lsbs[count] = _recentLsbs[i];
+                    ++count;
+                }
+            }
+        }
+        if (count != 0) {
+            sort(times, msbs, lsbs, 0, count - 1);
+        }
+
+        // Walk the sorted range and the recent matches together, in order.
+        int low = lowerBound(sorted.times, from);
+        int high = lowerBound(sorted.times, to);
+        int i = newestFirst ? high - 1 : low;
+        int j = newestFirst ? count - 1 : 0;
+        int step = newestFirst ? -1 : 1;
+        ArrayList<Map.Entry<UUID, Long>> entries = new ArrayList<>();
+        boolean havePrevious = false;
+        long previousTime = 0;
+        long previousMsb = 0;
+        long previousLsb = 0;
+        while (entries.size() < limit) {
+            boolean sortedLeft = (i >= low && i < high);
+            boolean recentLeft = (j >= 0 && j < count);
+            long time;
+            long msb;
+            long lsb;
+            if (sortedLeft &&
+                (!recentLeft ||
+                 step * compare(sorted.times[i], sorted.msbs[i], sorted.lsbs[i], times[j], msbs[j], lsbs[j]) <= 0)) {
+                time = sorted.times[i];
+                msb = sorted.msbs[i];
+                lsb = sorted.lsbs[i];
+                i += step;
+            } else if (recentLeft) {
+                time = times[j];
+                msb = msbs[j];
+                lsb = lsbs[j];
+                j += step;
+            } else {
+                break;
+            }
+
+            if (havePrevious && time == previousTime && msb == previousMsb && lsb == previousLsb) {
+                continue;
+            }
+            havePrevious = true;
+            previousTime = time;
+            previousMsb = msb;
+            previousLsb = lsb;
+            if (_check.isCurrent(msb, lsb, time)) {
+                if (skip > 0) {
+                    --skip;
+                } else {
+                    entries.add(new AbstractMap.SimpleImmutableEntry<>(new UUID(msb, lsb), time));
+                }
+            }
+        }
+        return entries;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Move the count elements of an array starting at from to its start,
+     * reallocating it if the capacity differs.
+     *
+     * @param array the array.
+     * @param from the index of the first element to keep.
+     * @param count the number of elements to keep.
+     * @param capacity the required capacity.
+     * @return the array, or its replacement.
+     */
+    protected static long[] shift(long[] array, int from, int count, int capacity) {
+        long[] result = (capacity == array.length) ? array : new long[capacity];
+        System.arraycopy(array, from, result, 0, count);
+        return result;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the index of the first element of a sorted array that is not
+     * less than the key.
+     *
+     * @param array the sorted array.
+     * @param key the key.
+     * @return the index, in [0, array.length].
+     */
+    protected static int lowerBound(long[] array, long key) {
+        int low = 0;
+        int high = array.length;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (array[mid] < key) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Compare two entries in index order: by time stamp, then UUID.
+     *
+     * @return negative, zero or positive as the first entry is less than,
+     *         equal to or greater than the second.
+     */
+    protected static int compare(long time1, long msb1, long lsb1, long time2, long msb2, long lsb2) {
+        int order = Long.compare(time1, time2);
+        return (order != 0) ? order : SnapshotFile.compare(msb1, lsb1, msb2, lsb2);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Sort parallel arrays of time stamps and UUIDs, in index order, between
+     * indices low and high inclusive.
+     */
+    protected static void sort(long[] times, long[] msbs, long[] lsbs, int low, int high) {
+        while (high - low > 16) {
+            int mid = (low + high) >>> 1;
+            long pivotTime = times[mid];
+            long pivotMsb = msbs[mid];
+            long pivotLsb = lsbs[mid];
+            int i = low;
+            int j = high;
+            while (i <= j) {
+                while (compare(times[i], msbs[i], lsbs[i], pivotTime, pivotMsb, pivotLsb) < 0) {
+                    ++i;
+                }
+                while (compare(times[j], msbs[j], lsbs[j], pivotTime, pivotMsb, pivotLsb) > 0) {
+                    --j;
+                }
+                if (i <= j) {
+                    SnapshotFile.swap(times, msbs, lsbs, i++, j--);
+                }
+            }
+
+            // Recurse into the smaller partition to bound stack depth.
+            if (j - low < high - i) {
+                sort(times, msbs, lsbs, low, j);
+                low = i;
+            } else {
+                sort(times, msbs, lsbs, i, high);
+                high = j;
+            }
+        }
+
+        for (int i = low + 1; i <= high; ++i) {
+            for (int j = i; j > low && compare(times[j - 1], msbs[j - 1], lsbs[j - 1], times[j], msbs[j], lsbs[j]) > 0; --j) {
+                SnapshotFile.swap(times, msbs, lsbs, j - 1, j);
+            }
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Immutable parallel arrays of entries, in index order.
+     */
+    protected static final class Sorted {
+        Sorted(long[] times, long[] msbs, long[] lsbs) {
+            this.times = times;
+            this.msbs = msbs;
+            this.lsbs = lsbs;
+        }
+
+        final long[] times;
+        final long[] msbs;
+        final long[] lsbs;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * The initial number of recent entries allocated.
+     */
+    protected static final int MIN_CAPACITY = 64;
+
+    /**
+     * Tells whether entries are current.
+     */
+    protected final CurrentCheck _check;
+
+    /**
+     * Merged entries. Replaced, never modified, once published; guarded by
+     * this when read together with the recent entries.
+     */
+    protected volatile Sorted _sorted = new Sorted(new long[0], new long[0], new long[0]);
+
+    /**
+     * Time stamps of entries added since the last merge(), in the order
+     * added. Guarded by this.
+     */
+    protected long[] _recentTimes = new long[0];
+
+    /**
+     * Most significant UUID bits of the recent entries. Guarded by this.
+     */
+    protected long[] _recentMsbs = new long[0];
+
+    /**
+     * Least significant UUID bits of the recent entries. Guarded by this.
+     */
+    protected long[] _recentLsbs = new long[0];
+
+    /**
+     * The number of recent entries. Guarded by this.
+     */
+    protected int _recentSize;
+
+    /**
+     * True once every stored player has been added.
+     */
+    protected volatile boolean _complete;
+}
@@ -0,0 +1,654 @@
+package com.bermudalocket.lastseen;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+// ----------------------------------------------------------------------------
+/**
+ * A write-ahead log of changed per-player values, which makes each change
+ * durable within a fraction of a second instead of at the next save.
+ *
+ * The log is split into numbered segments, wal.&lt;segment&gt;.log, each
+ * starting with a HEADER_SIZE byte header (MAGIC, VERSION) followed by
+ * records of RECORD_SIZE bytes:
+ *
+ * <ul>
+ * <li>1 byte: the kind of value, e.g. LAST_SEEN or PLAYTIME.</li>
+ * <li>8 bytes: the most significant bits of the player's UUID.</li>
+ * <li>8 bytes: the least significant bits of the player's UUID.</li>
+ * <li>8 bytes: the value.</li>
+ * </ul>
+ *
+ * append() only copies the record into an in-memory buffer. A background
+ * thread group-commits the buffer every commit interval, or sooner once it
+ * holds the configured number of bytes: one write and one fsync for every
+ * record appended since the previous commit, however many there are.
+ *
+ * When a save drains the changed values, it calls roll(), so that records
+ * appended from then on go to a new segment. Once the save has written
+ * everything it drained, the segments up to and including the one that was
+ * rolled are redundant and are deleted by deleteThrough(). If the save fails,
+ * they are kept until a later save succeeds.
+ *
+ * On startup, replay() reads the remaining segments in order. Their records
+ * are newer than anything saved, so they are applied over the loaded values
+ * and saved again by the next save. A partial record at the end of a segment,
+ * left by a crash during a commit, is ignored.
+ */
+public class WriteAheadLog {
+    // ------------------------------------------------------------------------
+    /**
+     * Receives each record read from the log.
+     */
+    @FunctionalInterface
+    public interface RecordVisitor {
+        /**
+         * Visit one record.
+         *
+         * @param kind the kind of value.
+         * @param msb the most significant bits of the player's UUID.
+         * @param lsb the least significant bits of the player's UUID.
+         * @param value the value.
+         */
+        void visit(byte kind, long msb, long lsb, long value);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Constructor.
+     *
+     * @param dataFolder the folder containing the segments.
+     * @param commitIntervalMillis the maximum time between commits.
+     * @param commitBytes the number of buffered bytes that triggers a commit
+     *        before the interval has elapsed.
+     */
+    public WriteAheadLog(File dataFolder, long commitIntervalMillis, int commitBytes) {
+        _dataFolder = dataFolder;
+        _commitIntervalMillis = Math.max(1, commitIntervalMillis);
+        _commitBytes = Math.max(RECORD_SIZE, commitBytes);
+        _pending = ByteBuffer.allocate(_commitBytes + RECORD_SIZE);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Read the records of all existing segments, oldest first, and set the
+     * segment for new records to follow them.
+     *
+     * This must be called before start().
+     *
+     * @param visitor receives the records.
+     * @return the number of records read.
+     */
+    public int replay(RecordVisitor visitor) {
+        int count = 0;
+        TreeMap<Long, File> segments = listSegments();
+        for (File file : segments.values()) {
+            try {
+                count += replaySegment(file, visitor);
+            } catch (Exception ex) {
+                LastSeen.PLUGIN.getLogger().severe("Cannot replay " + file.getName() + ": " + ex.getMessage());
+            }
+        }
+        if (!segments.isEmpty()) {
+            _segment = segments.lastKey() + 1;
+        }
+        return count;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Start the background thread that commits appended records.
+     */
+    public void start() {
+        _thread = new Thread(this::run, "LastSeen WAL");
+        _thread.setDaemon(true);
+        _thread.start();
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Append a record, to be committed by the background thread.
+     *
+     * @param kind the kind of value.
+     * @param uuid the player's UUID.
+     * @param value the value.
+     */
+    public synchronized void append(byte kind, UUID uuid, long value) {
+        ensurePendingCapacity(RECORD_SIZE);
+        _pending.put(kind).putLong(uuid.getMostSignificantBits()).putLong(uuid.getLeastSignificantBits())
+                .putLong(value);
+        if (_pending.position() >= _commitBytes) {
+            notifyAll();
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Append records for several players with the same value.
+     *
+     * @param kind the kind of value.
+     * @param msbs the most significant bits of the players' UUIDs.
+     * @param lsbs the least significant bits of the players' UUIDs.
+     * @param count the number of players in msbs and lsbs.
+     * @param value the value.
+     */
+    public synchronized void appendAll(byte kind, long[] msbs, long[] lsbs, int count, long value) {
+        ensurePendingCapacity(count * RECORD_SIZE);
+        for (int i = 0; i < count; ++i) {
+            _pending.put(kind).putLong(msbs[i]).putLong(lsbs[i]).putLong(value);
+        }
+        if (_pending.position() >= _commitBytes) {
+            notifyAll();
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Start a new segment for records appended after this call.
+     *
+     * This should be called when a save drains the changed values.
+     *
+     * @return the number of the segment that was ended, to be passed to
+     *         deleteThrough() once the save is complete.
+     */
+    public synchronized long roll() {
+        if (_pending.position() != 0) {
+            _batches.add(new Batch(_segment, takePending()));
+        }
+        ++_segment;
+        notifyAll();
+        return _segment - 1;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Delete the segments up to and including the specified one, once every
+     * record in them has been committed.
+     *
+     * @param segment the segment number returned by roll().
+     */
+    public void deleteThrough(long segment) {
+        flush();
+        for (Map.Entry<Long, File> entry : listSegments().headMap(segment, true).entrySet()) {
+            try {
+                Files.deleteIfExists(entry.getValue().toPath());
+            } catch (IOException ex) {
+                LastSeen.PLUGIN.getLogger().severe("Cannot delete " + entry.getValue().getName() + ": " +
+                                                   ex.getMessage());
+            }
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Wait until every record appended before this call has been committed.
+     */
+    public synchronized void flush() {
+        long target = ++_flushRequests;
+        notifyAll();
+        while (_committedRequests < target && _thread != null && _thread.isAlive()) {
+            try {
+                wait();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Commit any remaining records and stop the background thread.
+     *
+     * If every segment has been deleted by then, the log is empty and the
+     * segment numbering restarts on the next startup.
+     */
+    public void close() {
+        if (_thread != null) {
+            flush();
+            synchronized (this) {
+                _closing = true;
+                notifyAll();
+            }
+            try {
+                _thread.join();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+            _thread = null;
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * The body of the background thread: repeatedly wait for the commit
+     * interval to elapse, or for enough records or a flush request, then
+     * write and sync everything appended.
+     *
+     * If nothing was appended, nothing is written or allocated, so an idle
+     * server costs only the wake-up. Otherwise, the pending buffer is swapped
+     * with a spare one, which the committed buffer then replaces.
+     */
+    protected void run() {
+        for (;;) {
+            List<Batch> batches;
+            long segment;
+            ByteBuffer records;
+            long requests;
+            boolean closing;
+            synchronized (this) {
+                long deadline = System.currentTimeMillis() + _commitIntervalMillis;
+                long remaining;
+                while (!_closing && _flushRequests == _committedRequests && _batches.isEmpty() &&
+                       _pending.position() < _commitBytes &&
+                       (remaining = deadline - System.currentTimeMillis()) > 0) {
+                    try {
+                        wait(remaining);
+                    } catch (InterruptedException ex) {
+                        _closing = true;
+                    }
+                }
+                closing = _closing;
+                requests = _flushRequests;
+                if (_batches.isEmpty()) {
+                    batches = Collections.emptyList();
+                } else {
+                    batches = _batches;
+                    _batches = new ArrayList<>();
+                }
+                segment = _segment;
+                records = (_pending.position() != 0) ? takePending() : null;
+            }
+
+            if (!batches.isEmpty() || records != null) {
+                commit(batches, segment, records);
+            }
+
+            synchronized (this) {
+                for (Batch batch : batches) {
+                    recycle(batch.records);
+                }
+                if (records != null) {
+                    recycle(records);
+                }
+                _committedRequests = requests;
+                notifyAll();
+            }
+            if (closing) {
+                closeChannel();
+                return;
+            }
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Write batches of records to their segments and sync them, on the
+     * background thread.
+     *
+     * A segment's file is only created once it has records. Records that
+     * cannot be written are logged and dropped; the values remain in memory
+     * and are saved by the next save as usual.
+     *
+     * @param batches the records of earlier segments, taken by roll(), in the
+     *        order they were appended.
+     * @param segment the current segment.
+     * @param records the records appended to the current segment, or null if
+     *        there are none.
+     */
+    protected void commit(List<Batch> batches, long segment, ByteBuffer records) {
+        try {
+            boolean written = false;
+            for (Batch batch : batches) {
+                written = write(batch.segment, batch.records, written);
+            }
+            if (records != null) {
+                written = write(segment, records, written);
+            }
+            if (written) {
+                _channel.force(false);
+            }
+        } catch (IOException ex) {
+            LastSeen.PLUGIN.getLogger().severe("Cannot write to the write-ahead log: " + ex.getMessage());
+            closeChannel();
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Write records to the file of their segment, on the background thread,
+     * first syncing and closing the file of the previous segment if it
+     * differs.
+     *
+     * @param segment the segment number.
+     * @param records the records.
+     * @param written true if the open file has unsynced writes.
+     * @return true if the open file has unsynced writes.
+     * @throws IOException if the records could not be written.
+     */
+    protected boolean write(long segment, ByteBuffer records, boolean written) throws IOException {
+        if (segment != _channelSegment && _channel != null) {
+            if (written) {
+                _channel.force(false);
+            }
+            closeChannel();
+        }
+        if (_channel == null) {
+            openChannel(segment);
+        }
+        ChannelIO.writeFully(_channel, records);
+        return true;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Open the file of a segment for appending, writing the header if it is
+     * new.
+     *
+     * @param segment the segment number.
+     * @throws IOException if the file could not be opened.
+     */
+    protected void openChannel(long segment) throws IOException {
+        _channel = FileChannel.open(getSegmentFile(segment).toPath(), StandardOpenOption.CREATE,
+                                    StandardOpenOption.WRITE);
+        _channelSegment = segment;
+        if (_channel.size() == 0) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            header.putInt(MAGIC).putInt(VERSION).flip();
+            ChannelIO.writeFully(_channel, header);
+        }
+        _channel.position(_channel.size());
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Close the open segment file, if any.
+     */
+    protected void closeChannel() {
+        if (_channel != null) {
+            try {
+                _channel.close();
+            } catch (IOException ex) {
+                LastSeen.PLUGIN.getLogger().severe("Cannot close the write-ahead log: " + ex.getMessage());
+            }
+            _channel = null;
+            _channelSegment = -1;
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Read the records of one segment.
+     *
+     * @param file the segment file.
+     * @param visitor receives the records.
+     * @return the number of records read.
+     * @throws IOException if the file cannot be read.
+     */
+    protected int replaySegment(File file, RecordVisitor visitor) throws IOException {
+        int count = 0;
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            if (channel.size() == 0) {
+                return 0;
+            }
+            ByteBuffer buffer = ByteBuffer.allocate(READ_BUFFER_RECORDS * RECORD_SIZE);
+            buffer.limit(HEADER_SIZE);
+            while (buffer.hasRemaining() && channel.read(buffer) > 0) {
+            }
+            buffer.flip();
+            if (buffer.remaining() != HEADER_SIZE || buffer.getInt() != MAGIC) {
+                throw new IOException(file.getName() + " is not a write-ahead log segment");
+            }
+            int version = buffer.getInt();
+            if (version != VERSION) {
+                throw new IOException(file.getName() + " has unsupported version " + version);
+            }
+
+            buffer.clear();
+            while (channel.read(buffer) > 0) {
+                buffer.flip();
+                while (buffer.remaining() >= RECORD_SIZE) {
+                    visitor.visit(buffer.get(), buffer.getLong(), buffer.getLong(), buffer.getLong());
+                    ++count;
+                }
+                buffer.compact();
+            }
+            if (buffer.position() != 0) {
+                LastSeen.PLUGIN.getLogger().warning("Ignoring partial record at the end of " + file.getName() + ".");
+            }
+        }
+        return count;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the existing segment files, by segment number.
+     *
+     * @return the existing segment files, by segment number.
+     */
+    protected TreeMap<Long, File> listSegments() {
+        TreeMap<Long, File> segments = new TreeMap<>();
+        File[] files = _dataFolder.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                Matcher matcher = SEGMENT_PATTERN.matcher(file.getName());
+                if (matcher.matches()) {
+                    segments.put(Long.parseLong(matcher.group(1)), file);
+                }
+            }
+        }
+        return segments;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the file of the specified segment.
+     *
+     * @param segment the segment number.
+     * @return the file.
+     */
+    protected File getSegmentFile(long segment) {
+        return new File(_dataFolder, "wal." + segment + ".log");
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Grow the pending buffer, if necessary, to accept the specified number of
+     * bytes. The caller must hold the lock.
+     *
+     * @param bytes the number of bytes to be appended.
+     */
+    protected void ensurePendingCapacity(int bytes) {
+        if (_pending.remaining() < bytes) {
+            ByteBuffer larger = ByteBuffer.allocate(Math.max(2 * _pending.capacity(), _pending.position() + bytes));
+            _pending.flip();
+            larger.put(_pending);
+            _pending = larger;
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the pending records, ready to be written, and continue with the
+     * spare buffer, or a new one if the spare is in use. The caller must hold
+     * the lock.
+     *
+     * @return the pending records.
+     */
+    protected ByteBuffer takePending() {
+        ByteBuffer records = _pending;
+        records.flip();
+        if (_spare != null) {
+            _pending = _spare;
+            _spare = null;
+        } else {
+            _pending = ByteBuffer.allocate(_commitBytes + RECORD_SIZE);
+        }
+        return records;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Keep a committed buffer as the spare for the next takePending(), unless
+     * it was grown by a large append. The caller must hold the lock.
+     *
+     * @param buffer the committed buffer.
+     */
+    protected void recycle(ByteBuffer buffer) {
+        if (buffer.capacity() == _commitBytes + RECORD_SIZE) {
+            buffer.clear();
+            _spare = buffer;
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Records appended to one segment, waiting to be committed.
+     */
+    protected static final class Batch {
+        /**
+         * Constructor.
+         *
+         * @param segment the segment number.
+         * @param records the records, ready to be written.
+         */
+        Batch(long segment, ByteBuffer records) {
+            this.segment = segment;
+            this.records = records;
+        }
+
+        /**
+         * The segment number.
+         */
+        final long segment;
+
+        /**
+         * The records, ready to be written.
+         */
+        final ByteBuffer records;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * The kind of a last-seen time stamp record.
+     */
+    public static final byte LAST_SEEN = 1;
+
+    /**
+     * The kind of a playtime total record.
+     */
+    public static final byte PLAYTIME = 2;
+
+    /**
+     * Identifies a file as a write-ahead log segment: "LSW" followed by a
+     * zero.
+     */
+    protected static final int MAGIC = 0x4C535700;
+
+    /**
+     * The file format version.
+     */
+    protected static final int VERSION = 1;
+
+    /**
+     * Size of the file header in bytes.
+     */
+    protected static final int HEADER_SIZE = 8;
+
+    /**
+     * Size of one record in bytes.
+     */
+    protected static final int RECORD_SIZE = 25;
+
+    /**
+     * Number of records read from a segment per read() call.
+     */
+    protected static final int READ_BUFFER_RECORDS = 4096;
+
+    /**
+     * Matches segment file names, capturing the segment number.
+     */
+    protected static final Pattern SEGMENT_PATTERN = Pattern.compile("wal\\.(\\d+)\\.log");
+
+    /**
+     * The folder containing the segments.
+     */
+    protected final File _dataFolder;
+
+    /**
+     * The maximum time between commits, in milliseconds.
+     */
+    protected final long _commitIntervalMillis;
+
+    /**
+     * The number of buffered bytes that triggers an early commit.
+     */
+    protected final int _commitBytes;
+
+    /**
+     * Records appended to _segment since the last commit or roll(). Guarded by
+     * this.
+     */
+    protected ByteBuffer _pending;
+
+    /**
+     * An empty buffer to replace _pending when it is taken, or null if both
+     * buffers are in use. Guarded by this.
+     */
+    protected ByteBuffer _spare;
+
+    /**
+     * Records of earlier segments, taken by roll() and not yet committed.
+     * Guarded by this.
+     */
+    protected List<Batch> _batches = new ArrayList<>();
+
+    /**
+     * The segment to which records are currently appended. Guarded by this.
+     */
+    protected long _segment;
+
+    /**
+     * The number of flush() calls so far. Guarded by this.
+     */
+    protected long _flushRequests;
+
+    /**
+     * The value of _flushRequests when the background thread last took
+     * records to commit, once they have been committed. Guarded by this.
+     */
+    protected long _committedRequests;
+
+    /**
+     * True once close() has asked the background thread to stop. Guarded by
+     * this.
+     */
+    protected boolean _closing;
+
+    /**
+     * The background thread that commits records.
+     */
+    protected Thread _thread;
+
+    /**
+     * The open segment file, used only by the background thread, or null.
+     */
+    protected FileChannel _channel;
+
+    /**
+     * The number of the segment open in _channel, or -1.
+     */
+    protected long _channelSegment = -1;
+}
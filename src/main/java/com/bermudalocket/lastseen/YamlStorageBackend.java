@@ -0,0 +1,169 @@
+package com.bermudalocket.lastseen;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Map;
+import java.util.UUID;
+
+import org.bukkit.configuration.ConfigurationSection;
+import org.bukkit.configuration.InvalidConfigurationException;
+import org.bukkit.configuration.file.YamlConfiguration;
+
+// ----------------------------------------------------------------------------
+/**
+ * A human-readable YAML file, last-seen.yml, of the form:
+ *
+ * <pre>
+ * players:
+ *   069a79f4-44e9-4726-a5be-fca90e38aaf5:
+ *     last-seen: 1546300800000
+ * </pre>
+ *
+ * The file is keyed by UUID, so a player who changes name keeps their entry,
+ * and a name taken over by another player cannot overwrite it. Entries whose
+ * key is not a UUID are skipped on load.
+ *
+ * Earlier versions keyed the file by lower case player name. On startup,
+ * DataStorage moves such a file aside and converts it once with the
+ * LegacyYamlMigrator.
+ *
+ * The file is written through an AtomicFile: to a temporary file that is
+ * synced, checksummed and renamed into place, keeping the previous version
+ * as last-seen.yml.bak, which is loaded if the newest fails its checksum.
+ *
+ * Every write() rewrites the entire file, so the cost of a save is
+ * proportional to the number of players ever seen. This backend is retained
+ * for servers that want to keep a human-readable file.
+ *
+ * Other per-player values, such as playtime totals, are stored in separate
+ * files of the same layout under a different key.
+ */
+public class YamlStorageBackend implements StorageBackend {
+    // ------------------------------------------------------------------------
+    /**
+     * Constructor.
+     *
+     * @param file the YAML file.
+     */
+    public YamlStorageBackend(File file) {
+        this(file, LAST_SEEN);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Constructor for files storing some other value per player, in the same
+     * layout.
+     *
+     * @param file the YAML file.
+     * @param key the per-player key of the value, e.g. "playtime".
+     */
+    public YamlStorageBackend(File file, String key) {
+        _file = file;
+        _key = "." + key;
+        _atomicFile = new AtomicFile(file);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * @see StorageBackend#exists()
+     */
+    @Override
+    public boolean exists() {
+        return _atomicFile.exists();
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * @see StorageBackend#load(LongIndex.EntryVisitor)
+     */
+    @Override
+    public SnapshotFile load(LongIndex.EntryVisitor visitor) throws IOException {
+        // Unlike YamlConfiguration.loadConfiguration(), fail rather than
+        // continue with an empty document if the file is damaged.
+        YamlConfiguration yaml = new YamlConfiguration();
+        try {
+            yaml.loadFromString(_atomicFile.read());
+        } catch (InvalidConfigurationException ex) {
+            throw new IOException(_file.getName() + " is not valid YAML: " + ex.getMessage(), ex);
+        }
+        _yaml = yaml;
+        ConfigurationSection players = _yaml.getConfigurationSection(PLAYERS);
+        if (players != null) {
+            int skipped = 0;
+            for (String key : players.getKeys(false)) {
+                UUID uuid = LegacyYamlMigrator.parseUUID(key);
+                if (uuid != null) {
+                    visitor.visit(uuid.getMostSignificantBits(), uuid.getLeastSignificantBits(),
+                                  players.getLong(key + _key, 0));
+                } else {
+                    ++skipped;
+                }
+            }
+            if (skipped != 0) {
+                LastSeen.PLUGIN.getLogger().warning("Skipped " + skipped + " entries of " + _file.getName() +
+                                                    " whose keys are not UUIDs.");
+            }
+        }
+        return null;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * @see StorageBackend#write(Map)
+     */
+    @Override
+    public void write(Map<UUID, Long> changes) throws IOException {
+        if (_yaml == null) {
+            // Only start an empty document if there is nothing it would
+            // replace; otherwise the file failed to load.
+            if (_atomicFile.exists()) {
+                throw new IOException(_file.getName() + " was not loaded, so it cannot be updated");
+            }
+            _yaml = new YamlConfiguration();
+        }
+        for (Map.Entry<UUID, Long> entry : changes.entrySet()) {
+            _yaml.set(PLAYERS + "." + entry.getKey() + _key, entry.getValue());
+        }
+        _atomicFile.write(_yaml.saveToString());
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * @see StorageBackend#close()
+     */
+    @Override
+    public void close() {
+        _yaml = null;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * The top level YAML section containing all players.
+     */
+    protected static final String PLAYERS = "players";
+
+    /**
+     * The per-player YAML key of last-seen time stamps.
+     */
+    protected static final String LAST_SEEN = "last-seen";
+
+    /**
+     * The path to the YAML file.
+     */
+    protected File _file;
+
+    /**
+     * Writes _file crash-safely, keeping the previous version.
+     */
+    protected AtomicFile _atomicFile;
+
+    /**
+     * The per-player YAML key suffix of the stored values, e.g. ".last-seen".
+     */
+    protected String _key;
+
+    /**
+     * The YAML document, or null if not yet loaded.
+     */
+    protected YamlConfiguration _yaml;
+}
@@ -0,0 +1,175 @@
+package com.bermudalocket.lastseen;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.zip.CRC32;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+// ----------------------------------------------------------------------------
+/**
+ * Tests of AtomicFile.
+ */
+public class AtomicFileTest {
+    // ------------------------------------------------------------------------
+    /**
+     * Create a temporary folder and install the plugin, through which the
+     * fallback to the previous generation is reported.
+     */
+    @Before
+    public void setUp() throws IOException {
+        _folder = Files.createTempDirectory("lastseen").toFile();
+        TestPlugin.install(_folder);
+        _file = new File(_folder, "last-seen.yml");
+        _atomicFile = new AtomicFile(_file);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Delete the temporary folder.
+     */
+    @After
+    public void tearDown() {
+        TestFiles.delete(_folder);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Contents round-trip without the trailer, and the previous generation is
+     * kept.
+     */
+    @Test
+    public void testRoundTrip() throws IOException {
+        assertFalse(_atomicFile.exists());
+        _atomicFile.write("a: 1");
+        _atomicFile.write("a: 2\n");
+        assertTrue(_atomicFile.exists());
+        assertEquals("a: 2\n", _atomicFile.read());
+        assertEquals("a: 1\n", AtomicFile.readVerified(new File(_folder, "last-seen.yml.bak")));
+        assertTrue(read(_file).endsWith("\n" + AtomicFile.TRAILER_PREFIX.trim() + " " +
+                                        crc("a: 2\n") + "\n"));
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * A file that fails its checksum falls back to the previous generation.
+     */
+    @Test
+    public void testCorruptFileFallsBack() throws IOException {
+        _atomicFile.write("a: 1\n");
+        _atomicFile.write("a: 2\n");
+        write(_file, read(_file).replace("a: 2", "a: 3"));
+        assertEquals("a: 1\n", _atomicFile.read());
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * A truncated file, which has lost its trailer, is not mistaken for a
+     * file written by an earlier version if it is empty.
+     */
+    @Test
+    public void testEmptyFileFallsBack() throws IOException {
+        _atomicFile.write("a: 1\n");
+        _atomicFile.write("a: 2\n");
+        write(_file, "");
+        assertEquals("a: 1\n", _atomicFile.read());
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * A missing file, as left by a crash between the two renames, falls back
+     * to the previous generation.
+     */
+    @Test
+    public void testMissingFileFallsBack() throws IOException {
+        _atomicFile.write("a: 1\n");
+        _atomicFile.write("a: 2\n");
+        assertTrue(_file.delete());
+        assertEquals("a: 1\n", _atomicFile.read());
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * If no generation is intact, read() throws rather than returning empty
+     * contents.
+     */
+    @Test(expected = IOException.class)
+    public void testNoIntactGeneration() throws IOException {
+        _atomicFile.write("a: 1\n");
+        _atomicFile.write("a: 2\n");
+        write(_file, read(_file).replace("a: 2", "a: 3"));
+        File backup = new File(_folder, "last-seen.yml.bak");
+        write(backup, read(backup).replace("a: 1", "a: 0"));
+        _atomicFile.read();
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * A file without a trailer, as written by an earlier version, is accepted
+     * as is.
+     */
+    @Test
+    public void testFileWithoutTrailer() throws IOException {
+        write(_file, "a: 1\n");
+        assertEquals("a: 1\n", _atomicFile.read());
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the CRC-32 of a string, as formatted in the trailer.
+     *
+     * @param contents the string.
+     * @return the CRC-32 in hexadecimal.
+     */
+    protected static String crc(String contents) {
+        CRC32 crc = new CRC32();
+        crc.update(contents.getBytes(StandardCharsets.UTF_8));
+        return String.format("%08x", crc.getValue());
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Read a file directly.
+     *
+     * @param file the file.
+     * @return the contents.
+     */
+    protected static String read(File file) throws IOException {
+        return new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Write a file directly.
+     *
+     * @param file the file.
+     * @param contents the contents.
+     */
+    protected static void write(File file, String contents) throws IOException {
+        Files.write(file.toPath(), contents.getBytes(StandardCharsets.UTF_8));
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * The temporary folder.
+     */
+    protected File _folder;
+
+    /**
+     * The file under test.
+     */
+    protected File _file;
+
+    /**
+     * Writes and reads _file.
+     */
+    protected AtomicFile _atomicFile;
+}
@@ -0,0 +1,82 @@
+package com.bermudalocket.lastseen;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.util.UUID;
+
+import org.junit.Test;
+
+// ----------------------------------------------------------------------------
+/**
+ * Tests of LoginHistory.
+ */
+public class LoginHistoryTest {
+    // ------------------------------------------------------------------------
+    /**
+     * Varints round-trip at every boundary between encoded lengths, up to the
+     * largest non-negative long.
+     */
+    @Test
+    public void testVarintRoundTrip() {
+        long[] values = { 0, 1, 127, 128, 16383, 16384, (1L << 21) - 1, 1L << 21, 1L << 35, (1L << 56) - 1,
+                          1L << 56, Long.MAX_VALUE };
+        int[] sizes = { 1, 1, 1, 2, 2, 3, 3, 4, 6, 8, 9, 9 };
+        byte[] buffer = new byte[LoginHistory.MAX_VARINT_SIZE * values.length];
+        int offset = 0;
+        for (int i = 0; i < values.length; ++i) {
+            int end = LoginHistory.putVarint(buffer, offset, values[i]);
+            assertEquals("size of " + values[i], sizes[i], end - offset);
+            offset = end;
+        }
+
+        long[] value = new long[1];
+        offset = 0;
+        for (long expected : values) {
+            offset = LoginHistory.getVarint(buffer, offset, value);
+            assertEquals(expected, value[0]);
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Sessions are returned newest first, rounded down to the second, and
+     * only the configured number is kept.
+     */
+    @Test
+    public void testSessionsAreCapped() {
+        LoginHistory history = new LoginHistory(3);
+        UUID uuid = new UUID(1, 1);
+        history.add(uuid, 1000_500, 1060_900);
+        history.add(uuid, 2000_000, 2000_000);
+        history.add(uuid, 3000_999, 3600_000);
+        assertArrayEquals(new long[] { 3000_000, 3600_000, 2000_000, 2000_000, 1000_000, 1060_000 },
+                          history.getSessions(uuid));
+
+        history.add(uuid, 4000_000, 4100_000);
+        assertArrayEquals(new long[] { 4000_000, 4100_000, 3000_000, 3600_000, 2000_000, 2000_000 },
+                          history.getSessions(uuid));
+        assertArrayEquals(new long[0], history.getSessions(new UUID(2, 2)));
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Encoded sessions loaded from the journal decode to the same sessions.
+     */
+    @Test
+    public void testLoadRoundTrip() {
+        LoginHistory history = new LoginHistory(50);
+        UUID uuid = new UUID(1, 1);
+        for (long i = 0; i < 60; ++i) {
+            history.add(uuid, 1_600_000_000_000L + i * 7_200_000, 1_600_000_000_000L + i * 7_200_000 + 3_000_000);
+        }
+        long[] sessions = history.getSessions(uuid);
+        assertEquals(100, sessions.length);
+        assertEquals(1_600_000_000_000L + 59 * 7_200_000, sessions[0]);
+
+        LoginHistory loaded = new LoginHistory(50);
+        history.forEach(loaded::load);
+        assertArrayEquals(sessions, loaded.getSessions(uuid));
+        assertEquals(history.getEncodedBytes(), loaded.getEncodedBytes());
+    }
+}
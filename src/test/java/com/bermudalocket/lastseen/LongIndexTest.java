@@ -0,0 +1,140 @@
+package com.bermudalocket.lastseen;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.UUID;
+
+import org.junit.Test;
+
+// ----------------------------------------------------------------------------
+/**
+ * Tests of LongIndex.
+ */
+public class LongIndexTest {
+    // ------------------------------------------------------------------------
+    /**
+     * Values survive the resizes needed to hold many entries, and later puts
+     * replace earlier ones.
+     */
+    @Test
+    public void testPutAndGetAcrossResizes() {
+        LongIndex index = new LongIndex();
+        Map<UUID, Long> expected = new HashMap<>();
+        Random random = new Random(1);
+        for (int i = 0; i < 10000; ++i) {
+            UUID uuid = new UUID(random.nextLong(), random.nextLong());
+            index.put(uuid, i);
+            expected.put(uuid, (long) i);
+        }
+        for (Map.Entry<UUID, Long> entry : expected.entrySet()) {
+            index.put(entry.getKey(), -entry.getValue());
+        }
+
+        assertEquals(expected.size(), index.size());
+        for (Map.Entry<UUID, Long> entry : expected.entrySet()) {
+            assertEquals(-entry.getValue(), index.get(entry.getKey(), Long.MIN_VALUE));
+        }
+        assertEquals(Long.MIN_VALUE, index.get(new UUID(1, 2), Long.MIN_VALUE));
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * The nil UUID marks empty slots, so it is never stored.
+     */
+    @Test
+    public void testNilUuidIsIgnored() {
+        LongIndex index = new LongIndex();
+        index.put(new UUID(0, 0), 5);
+        index.putAll(new long[] { 0, 1 }, new long[] { 0, 1 }, 2, 7);
+        assertFalse(index.putIfGreater(0, 0, 9, 0));
+
+        assertEquals(1, index.size());
+        assertEquals(-1, index.get(0, 0, -1));
+        assertEquals(7, index.get(1, 1, -1));
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * putIfGreater() stores only values above the current one, treating an
+     * absent UUID as holding the missing value.
+     */
+    @Test
+    public void testPutIfGreater() {
+        LongIndex index = new LongIndex();
+        assertFalse(index.putIfGreater(1, 2, 0, 0));
+        assertTrue(index.putIfGreater(1, 2, 10, 0));
+        assertFalse(index.putIfGreater(1, 2, 10, 0));
+        assertFalse(index.putIfGreater(1, 2, 5, 0));
+        assertTrue(index.putIfGreater(1, 2, 11, 0));
+        assertEquals(11, index.get(1, 2, 0));
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * A copy is unaffected by later puts to the original.
+     */
+    @Test
+    public void testCopyIsIndependent() {
+        LongIndex index = new LongIndex();
+        index.put(1, 1, 1);
+        LongIndex copy = index.copy();
+        index.put(1, 1, 2);
+        index.put(2, 2, 3);
+
+        assertEquals(1, copy.get(1, 1, 0));
+        assertEquals(0, copy.get(2, 2, 0));
+        assertEquals(1, copy.size());
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * removeMatching() drops only the entries whose value is unchanged in the
+     * other index, and the rebuilt table still finds the rest.
+     */
+    @Test
+    public void testRemoveMatching() {
+        LongIndex index = new LongIndex();
+        for (int i = 1; i <= 1000; ++i) {
+            index.put(i, i, i);
+        }
+        LongIndex saved = index.copy();
+        for (int i = 1; i <= 1000; i += 10) {
+            index.put(i, i, -i);
+        }
+        index.put(2000, 2000, 2000);
+
+        index.removeMatching(saved);
+        assertEquals(101, index.size());
+        for (int i = 1; i <= 1000; ++i) {
+            assertEquals((i % 10 == 1) ? -i : 0, index.get(i, i, 0));
+        }
+        assertEquals(2000, index.get(2000, 2000, 0));
+        assertEquals(1000, saved.size());
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * forEach() visits every entry exactly once.
+     */
+    @Test
+    public void testForEach() {
+        LongIndex index = new LongIndex();
+        for (int i = 1; i <= 100; ++i) {
+            index.put(i, -i, i);
+        }
+        long[] sum = new long[2];
+        index.forEach((msb, lsb, value) -> {
+            assertEquals(msb, -lsb);
+            assertEquals(msb, value);
+            sum[0] += value;
+            ++sum[1];
+        });
+        assertEquals(5050, sum[0]);
+        assertEquals(100, sum[1]);
+    }
+}
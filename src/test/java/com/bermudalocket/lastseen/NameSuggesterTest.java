@@ -0,0 +1,81 @@
+package com.bermudalocket.lastseen;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+// ----------------------------------------------------------------------------
+/**
+ * Tests of NameSuggester.
+ */
+public class NameSuggesterTest {
+    // ------------------------------------------------------------------------
+    /**
+     * Install the plugin, which merge() consults for debug logging, and index
+     * some names.
+     */
+    @Before
+    public void setUp() {
+        TestPlugin.install(new File("."));
+        for (String name : NAMES) {
+            _suggester.add(name);
+        }
+        _suggester.merge();
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Names are suggested closest first, ignoring case, in their original
+     * case.
+     */
+    @Test
+    public void testClosestFirst() {
+        assertEquals(Arrays.asList("Notch", "Natch", "Notchy"), _suggester.suggest("notc", 2, 10));
+        assertEquals(Arrays.asList("Notch", "Natch", "Notchy"), _suggester.suggest("NOTCH", 1, 10));
+        assertEquals(Collections.singletonList("Notch"), _suggester.suggest("Notchx", 1, 1));
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Only names within the maximum distance are suggested.
+     */
+    @Test
+    public void testMaxDistance() {
+        assertEquals(Collections.singletonList("jeb_"), _suggester.suggest("jeb", 1, 10));
+        assertEquals(Collections.emptyList(), _suggester.suggest("Steve", 2, 10));
+        assertEquals(Collections.singletonList("Dinnerbone"), _suggester.suggest("Dinerbone", 2, 10));
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Names too short for the bigram filter are still compared, and names
+     * added after the first merge are found.
+     */
+    @Test
+    public void testShortAndLateNames() {
+        _suggester.add("ab");
+        assertTrue(_suggester.suggest("a", 1, 10).contains("ab"));
+        _suggester.merge();
+        assertEquals(Collections.singletonList("ab"), _suggester.suggest("abc", 1, 10));
+        assertEquals(NAMES.size() + 1, _suggester.size());
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * The names initially in the index.
+     */
+    protected static final List<String> NAMES = Arrays.asList("Notch", "Natch", "Notchy", "jeb_", "Dinnerbone",
+                                                              "Grumm", "Searge");
+
+    /**
+     * The suggester under test.
+     */
+    protected final NameSuggester _suggester = new NameSuggester();
+}
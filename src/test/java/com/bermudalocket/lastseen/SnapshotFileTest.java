@@ -0,0 +1,156 @@
+package com.bermudalocket.lastseen;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+// ----------------------------------------------------------------------------
+/**
+ * Tests of SnapshotFile.
+ */
+public class SnapshotFileTest {
+    // ------------------------------------------------------------------------
+    /**
+     * Create a temporary folder.
+     */
+    @Before
+    public void setUp() throws IOException {
+        _folder = Files.createTempDirectory("lastseen").toFile();
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Delete the temporary folder.
+     */
+    @After
+    public void tearDown() {
+        TestFiles.delete(_folder);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Every record written is found by binary search, including the first
+     * and last, and UUIDs between records are not.
+     */
+    @Test
+    public void testBinarySearch() throws IOException {
+        LongIndex changes = new LongIndex();
+        Random random = new Random(2);
+        long[] msbs = new long[5000];
+        long[] lsbs = new long[msbs.length];
+        for (int i = 0; i < msbs.length; ++i) {
+            // Include negative halves, which must sort as signed longs.
+            msbs[i] = random.nextLong();
+            lsbs[i] = random.nextLong() | 1;
+            changes.put(msbs[i], lsbs[i], i);
+        }
+        changes.put(Long.MIN_VALUE, 1, -1);
+        changes.put(Long.MAX_VALUE, Long.MAX_VALUE, -2);
+
+        File file = new File(_folder, "snapshot");
+        assertEquals(msbs.length + 2, SnapshotFile.write(file, 7, null, changes));
+        SnapshotFile snapshot = SnapshotFile.open(file);
+        assertEquals(7, snapshot.getGeneration());
+        assertEquals(msbs.length + 2, snapshot.size());
+        for (int i = 0; i < msbs.length; ++i) {
+            assertEquals(i, snapshot.get(msbs[i], lsbs[i], Long.MIN_VALUE));
+            assertEquals(Long.MIN_VALUE, snapshot.get(msbs[i], lsbs[i] - 1, Long.MIN_VALUE));
+        }
+        assertEquals(-1, snapshot.get(Long.MIN_VALUE, 1, 0));
+        assertEquals(-2, snapshot.get(Long.MAX_VALUE, Long.MAX_VALUE, 0));
+        assertEquals(0, snapshot.get(Long.MIN_VALUE, 0, 0));
+
+        // No record has the smallest possible key, so every record follows it.
+        long[] previous = { Long.MIN_VALUE, Long.MIN_VALUE };
+        snapshot.forEach((msb, lsb, value) -> {
+            if (SnapshotFile.compare(previous[0], previous[1], msb, lsb) >= 0) {
+                fail("records out of order");
+            }
+            previous[0] = msb;
+            previous[1] = lsb;
+        });
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Writing over a base snapshot keeps the base records, replaces those
+     * that changed and adds the new ones, with no duplicates.
+     */
+    @Test
+    public void testMergeWithBase() throws IOException {
+        LongIndex first = new LongIndex();
+        for (int i = 1; i <= 100; ++i) {
+            first.put(0, 2 * i, i);
+        }
+        File baseFile = new File(_folder, "base");
+        SnapshotFile.write(baseFile, 1, null, first);
+        SnapshotFile base = SnapshotFile.open(baseFile);
+
+        LongIndex second = new LongIndex();
+        for (int i = 1; i <= 100; i += 2) {
+            // Odd keys are new; every other even key changes.
+            second.put(0, i, -i);
+            second.put(0, 2 * i, -2 * i);
+        }
+        second.put(0, 1000, 1000);
+        File mergedFile = new File(_folder, "merged");
+        assertEquals(151, SnapshotFile.write(mergedFile, 2, base, second));
+
+        SnapshotFile merged = SnapshotFile.open(mergedFile);
+        assertEquals(2, merged.getGeneration());
+        assertEquals(151, merged.size());
+        for (int i = 1; i <= 100; ++i) {
+            long expected = (i % 2 == 1) ? -2 * i : i;
+            assertEquals(expected, merged.get(0, 2 * i, 0));
+        }
+        for (int i = 1; i <= 100; i += 2) {
+            assertEquals(-i, merged.get(0, i, 0));
+        }
+        assertEquals(1000, merged.get(0, 1000, 0));
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * An empty snapshot can be written and opened.
+     */
+    @Test
+    public void testEmpty() throws IOException {
+        File file = new File(_folder, "empty");
+        assertEquals(0, SnapshotFile.write(file, 3, null, new LongIndex()));
+        SnapshotFile snapshot = SnapshotFile.open(file);
+        assertEquals(0, snapshot.size());
+        assertEquals(-1, snapshot.get(1, 1, -1));
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * A snapshot that lost its last record is rejected rather than read.
+     */
+    @Test(expected = IOException.class)
+    public void testTruncatedIsRejected() throws IOException {
+        LongIndex changes = new LongIndex();
+        changes.put(1, 1, 1);
+        changes.put(2, 2, 2);
+        File file = new File(_folder, "truncated");
+        SnapshotFile.write(file, 1, null, changes);
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(raf.length() - 1);
+        }
+        SnapshotFile.open(file);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * The temporary folder.
+     */
+    protected File _folder;
+}
@@ -0,0 +1,209 @@
+package com.bermudalocket.lastseen;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+// ----------------------------------------------------------------------------
+/**
+ * Tests of SqliteStorageBackend against the SQLite JDBC driver.
+ */
+public class SqliteStorageBackendTest {
+    // ------------------------------------------------------------------------
+    /**
+     * Create a temporary folder and install the plugin, through which the
+     * backend reports problems.
+     */
+    @Before
+    public void setUp() throws IOException {
+        _folder = Files.createTempDirectory("lastseen").toFile();
+        TestPlugin.install(_folder);
+        _file = new File(_folder, "lastseen.db");
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Delete the temporary folder.
+     */
+    @After
+    public void tearDown() {
+        TestFiles.delete(_folder);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Written values, including UUIDs with negative halves and more rows than
+     * one batch, are loaded by the next backend, later writes replacing
+     * earlier ones.
+     */
+    @Test
+    public void testWriteAndLoad() throws IOException {
+        Map<UUID, Long> expected = new HashMap<>();
+        for (int i = 0; i < SqliteStorageBackend.BATCH_SIZE + 10; ++i) {
+            expected.put(new UUID(-i, i), (long) i);
+        }
+        expected.put(new UUID(Long.MIN_VALUE, Long.MAX_VALUE), Long.MIN_VALUE);
+
+        SqliteStorageBackend backend = new SqliteStorageBackend(_file, "last-seen");
+        assertNull(backend.load(visitor(new HashMap<>())));
+        backend.write(expected);
+        Map<UUID, Long> changes = new HashMap<>();
+        changes.put(new UUID(-1, 1), 100L);
+        backend.write(changes);
+        expected.putAll(changes);
+        backend.close();
+
+        assertTrue(backend.exists());
+        assertEquals(expected, load("last-seen"));
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * The stores of one database file share one connection, which stays open
+     * until the last of them is closed, and each store keeps its own table.
+     */
+    @Test
+    public void testSharedConnection() throws IOException {
+        SqliteStorageBackend lastSeen = new SqliteStorageBackend(_file, "last-seen");
+        SqliteStorageBackend playtime = new SqliteStorageBackend(new File(_folder, "./lastseen.db"), "playtime");
+        lastSeen.load(visitor(new HashMap<>()));
+        playtime.load(visitor(new HashMap<>()));
+        assertEquals(1, SqliteStorageBackend.CONNECTIONS.size());
+
+        lastSeen.write(single(new UUID(1, 1), 10));
+        playtime.write(single(new UUID(1, 1), 20));
+        // The database is in WAL mode, so writes go first to lastseen.db-wal.
+        assertTrue(new File(_folder, "lastseen.db-wal").exists());
+        lastSeen.close();
+        assertEquals(1, SqliteStorageBackend.CONNECTIONS.size());
+
+        // The remaining store can still write after the other has closed.
+        playtime.write(single(new UUID(2, 2), 30));
+        playtime.close();
+        assertEquals(0, SqliteStorageBackend.CONNECTIONS.size());
+
+        assertEquals(single(new UUID(1, 1), 10), load("last-seen"));
+        Map<UUID, Long> expected = single(new UUID(1, 1), 20);
+        expected.put(new UUID(2, 2), 30L);
+        assertEquals(expected, load("playtime"));
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * SQLite reuses the space of replaced rows itself, so the backend never
+     * asks to be compacted, and compact() leaves the stored values as they
+     * are.
+     */
+    @Test
+    public void testCompactIsNotNeeded() throws IOException {
+        SqliteStorageBackend backend = new SqliteStorageBackend(_file, "last-seen");
+        backend.load(visitor(new HashMap<>()));
+        for (int i = 0; i < 10; ++i) {
+            backend.write(single(new UUID(1, 1), i));
+        }
+        assertFalse(backend.needsCompaction(1));
+        LongIndex changes = new LongIndex();
+        changes.put(new UUID(1, 1), 9);
+        assertNull(backend.compact(changes));
+        backend.close();
+
+        assertEquals(single(new UUID(1, 1), 9), load("last-seen"));
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Opening a table drops the value index created by earlier versions,
+     * keeping the rows.
+     */
+    @Test
+    public void testValueIndexIsDropped() throws IOException, SQLException {
+        try (Connection connection = DriverManager.getConnection("jdbc:sqlite:" + _file.getPath());
+             Statement statement = connection.createStatement()) {
+            statement.execute("CREATE TABLE last_seen (" +
+                              "msb INTEGER NOT NULL, lsb INTEGER NOT NULL, value INTEGER NOT NULL, " +
+                              "PRIMARY KEY (msb, lsb)) WITHOUT ROWID");
+            statement.execute("CREATE INDEX last_seen_value ON last_seen (value)");
+            statement.execute("INSERT INTO last_seen VALUES (1, 1, 5)");
+        }
+
+        assertEquals(single(new UUID(1, 1), 5), load("last-seen"));
+        try (Connection connection = DriverManager.getConnection("jdbc:sqlite:" + _file.getPath());
+             Statement statement = connection.createStatement();
+             ResultSet rows = statement.executeQuery("SELECT COUNT(*) FROM sqlite_master WHERE type = 'index' " +
+                                                     "AND name = 'last_seen_value'")) {
+            assertTrue(rows.next());
+            assertEquals(0, rows.getInt(1));
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Load the values of a store with a new backend.
+     *
+     * @param name the name of the store.
+     * @return the values.
+     */
+    protected Map<UUID, Long> load(String name) throws IOException {
+        Map<UUID, Long> values = new HashMap<>();
+        SqliteStorageBackend backend = new SqliteStorageBackend(_file, name);
+        try {
+            assertNull(backend.load(visitor(values)));
+        } finally {
+            backend.close();
+        }
+        return values;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return a visitor that puts the records it visits into a map.
+     *
+     * @param values the map.
+     * @return the visitor.
+     */
+    protected static LongIndex.EntryVisitor visitor(Map<UUID, Long> values) {
+        return (msb, lsb, value) -> values.put(new UUID(msb, lsb), value);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return a modifiable map holding one value.
+     *
+     * @param uuid the UUID.
+     * @param value the value.
+     * @return the map.
+     */
+    protected static Map<UUID, Long> single(UUID uuid, long value) {
+        Map<UUID, Long> values = new HashMap<>();
+        values.put(uuid, value);
+        return values;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * The temporary folder.
+     */
+    protected File _folder;
+
+    /**
+     * The database file.
+     */
+    protected File _file;
+}
@@ -0,0 +1,32 @@
+package com.bermudalocket.lastseen;
+
+import java.io.File;
+
+// ----------------------------------------------------------------------------
+/**
+ * File helpers for tests.
+ */
+final class TestFiles {
+    // ------------------------------------------------------------------------
+    /**
+     * Delete a file or folder and everything in it.
+     *
+     * @param file the file or folder.
+     */
+    static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Not instantiable.
+     */
+    private TestFiles() {
+    }
+}
@@ -0,0 +1,48 @@
+package com.bermudalocket.lastseen;
+
+import java.io.File;
+import java.lang.reflect.Proxy;
+import java.util.logging.Logger;
+
+import org.bukkit.Server;
+import org.bukkit.plugin.PluginDescriptionFile;
+import org.bukkit.plugin.java.JavaPluginLoader;
+
+// ----------------------------------------------------------------------------
+/**
+ * Installs a LastSeen instance as LastSeen.PLUGIN, for tests of classes that
+ * log through the plugin.
+ *
+ * The plugin is constructed but never enabled, so it has a logger and a data
+ * folder but no storage, and isDebug() returns false.
+ */
+final class TestPlugin {
+    // ------------------------------------------------------------------------
+    /**
+     * Install a plugin instance with the specified data folder.
+     *
+     * @param dataFolder the data folder.
+     */
+    @SuppressWarnings("deprecation")
+    static void install(File dataFolder) {
+        // Only getLogger() is called on the server outside of onEnable().
+        Server server = (Server) Proxy.newProxyInstance(Server.class.getClassLoader(),
+                                                        new Class<?>[] { Server.class },
+                                                        (proxy, method, args) -> {
+                                                            return method.getName().equals("getLogger")
+                                                                ? Logger.getLogger("Minecraft")
+                                                                : null;
+                                                        });
+        PluginDescriptionFile description = new PluginDescriptionFile("LastSeen", "test",
+                                                                      LastSeen.class.getName());
+        LastSeen.PLUGIN = new LastSeen(new JavaPluginLoader(server), description, dataFolder,
+                                       new File(dataFolder, "LastSeen.jar"));
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Not instantiable.
+     */
+    private TestPlugin() {
+    }
+}
@@ -0,0 +1,172 @@
+package com.bermudalocket.lastseen;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+import org.junit.Before;
+import org.junit.Test;
+
+// ----------------------------------------------------------------------------
+/**
+ * Tests of TimeIndex.
+ */
+public class TimeIndexTest {
+    // ------------------------------------------------------------------------
+    /**
+     * Install the plugin, which merge() consults for debug logging.
+     */
+    @Before
+    public void setUp() {
+        TestPlugin.install(new File("."));
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Queries return the same entries, in the same order, whether they are
+     * recent, merged or a mixture of both.
+     */
+    @Test
+    public void testFindBeforeAndAfterMerge() {
+        for (int i = 1; i <= 50; ++i) {
+            add(i, 100 * i);
+        }
+        List<Long> expected = times(30, 50);
+        assertEquals(expected, findTimes(3000, 5001, false, 0, 100));
+
+        _index.merge();
+        assertEquals(expected, findTimes(3000, 5001, false, 0, 100));
+
+        // Move some players to later times, leaving superseded entries in
+        // both the sorted array and the recent list.
+        for (int i = 1; i <= 10; ++i) {
+            add(i, 10000 + i);
+        }
+        for (int i = 1; i <= 5; ++i) {
+            add(i, 20000 + i);
+        }
+        List<Long> later = new ArrayList<>();
+        for (int i = 6; i <= 10; ++i) {
+            later.add(10000L + i);
+        }
+        for (int i = 1; i <= 5; ++i) {
+            later.add(20000L + i);
+        }
+        assertEquals(later, findTimes(5001, Long.MAX_VALUE, false, 0, 100));
+        assertEquals(times(11, 50), findTimes(0, 5001, false, 0, 100));
+
+        _index.merge();
+        assertEquals(later, findTimes(5001, Long.MAX_VALUE, false, 0, 100));
+        assertEquals(times(11, 50), findTimes(0, 5001, false, 0, 100));
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * The range is inclusive of from and exclusive of to, and newestFirst,
+     * skip and limit page through it in either direction.
+     */
+    @Test
+    public void testRangeAndPaging() {
+        for (int i = 1; i <= 20; ++i) {
+            add(i, 100 * i);
+        }
+        _index.merge();
+        for (int i = 21; i <= 30; ++i) {
+            add(i, 100 * i);
+        }
+
+        assertEquals(times(10, 19), findTimes(1000, 2000, false, 0, 100));
+        assertEquals(times(13, 15), findTimes(1000, 2000, false, 3, 3));
+
+        List<Long> newest = new ArrayList<>();
+        for (int i = 20; i >= 16; --i) {
+            newest.add(100L * i);
+        }
+        assertEquals(newest, findTimes(0, 2201, true, 2, 5));
+        assertEquals(new ArrayList<Long>(), findTimes(0, 2201, true, 22, 5));
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Players with equal time stamps are ordered by UUID and each returned
+     * once.
+     */
+    @Test
+    public void testEqualTimes() {
+        for (int i = 1; i <= 10; ++i) {
+            add(i, 500);
+        }
+        _index.merge();
+        // Re-adding a current entry must not produce a duplicate.
+        add(3, 500);
+
+        List<Map.Entry<UUID, Long>> entries = _index.find(0, 1000, false, 0, 100);
+        assertEquals(10, entries.size());
+        for (int i = 0; i < 10; ++i) {
+            assertEquals(new UUID(i + 1, 0), entries.get(i).getKey());
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Set a player's current time stamp and add it to the index.
+     *
+     * @param player the most significant bits of the player's UUID.
+     * @param time the time stamp.
+     */
+    protected void add(long player, long time) {
+        _current.put(player, 0, time);
+        _index.add(player, 0, time);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the time stamps found by a query.
+     *
+     * @param from the earliest time stamp, inclusive.
+     * @param to the latest time stamp, exclusive.
+     * @param newestFirst if true, return the latest time stamps first.
+     * @param skip the number of entries to skip.
+     * @param limit the maximum number of entries to return.
+     * @return the time stamps.
+     */
+    protected List<Long> findTimes(long from, long to, boolean newestFirst, int skip, int limit) {
+        List<Long> times = new ArrayList<>();
+        for (Map.Entry<UUID, Long> entry : _index.find(from, to, newestFirst, skip, limit)) {
+            assertEquals(_current.get(entry.getKey(), 0), (long) entry.getValue());
+            times.add(entry.getValue());
+        }
+        return times;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the time stamps 100 * first to 100 * last, in ascending order.
+     *
+     * @param first the first multiplier.
+     * @param last the last multiplier.
+     * @return the time stamps.
+     */
+    protected static List<Long> times(int first, int last) {
+        List<Long> times = new ArrayList<>();
+        for (int i = first; i <= last; ++i) {
+            times.add(100L * i);
+        }
+        return times;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * The current time stamp of each player.
+     */
+    protected final LongIndex _current = new LongIndex();
+
+    /**
+     * The index under test.
+     */
+    protected final TimeIndex _index = new TimeIndex((msb, lsb, time) -> _current.get(msb, lsb, 0) == time);
+}
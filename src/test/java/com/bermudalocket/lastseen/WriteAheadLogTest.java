@@ -0,0 +1,129 @@
+package com.bermudalocket.lastseen;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+// ----------------------------------------------------------------------------
+/**
+ * Tests of WriteAheadLog.
+ */
+public class WriteAheadLogTest {
+    // ------------------------------------------------------------------------
+    /**
+     * Create a temporary folder and install the plugin, through which the log
+     * reports problems.
+     */
+    @Before
+    public void setUp() throws IOException {
+        _folder = Files.createTempDirectory("lastseen").toFile();
+        TestPlugin.install(_folder);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Delete the temporary folder.
+     */
+    @After
+    public void tearDown() {
+        TestFiles.delete(_folder);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Records committed before close() are replayed in order by the next
+     * instance, including batches appended with appendAll().
+     */
+    @Test
+    public void testReplay() {
+        WriteAheadLog log = open(new ArrayList<>());
+        log.append(WriteAheadLog.LAST_SEEN, new UUID(1, 2), 100);
+        log.append(WriteAheadLog.PLAYTIME, new UUID(1, 2), 5);
+        log.flush();
+        log.appendAll(WriteAheadLog.LAST_SEEN, new long[] { 3, 4 }, new long[] { 30, 40 }, 2, 200);
+        log.close();
+
+        List<String> records = new ArrayList<>();
+        open(records).close();
+        assertEquals(Arrays.asList("1 1 2 100", "2 1 2 5", "1 3 30 200", "1 4 40 200"), records);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * deleteThrough() removes the segments up to the one returned by roll(),
+     * keeping records appended since.
+     */
+    @Test
+    public void testDeleteThrough() {
+        WriteAheadLog log = open(new ArrayList<>());
+        log.append(WriteAheadLog.LAST_SEEN, new UUID(1, 1), 1);
+        long segment = log.roll();
+        log.append(WriteAheadLog.LAST_SEEN, new UUID(2, 2), 2);
+        log.deleteThrough(segment);
+        log.close();
+
+        List<String> records = new ArrayList<>();
+        WriteAheadLog next = open(records);
+        assertEquals(Arrays.asList("1 2 2 2"), records);
+
+        // New records follow the surviving segment.
+        next.append(WriteAheadLog.LAST_SEEN, new UUID(3, 3), 3);
+        next.close();
+        records.clear();
+        open(records).close();
+        assertEquals(Arrays.asList("1 2 2 2", "1 3 3 3"), records);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * A partial record left by a crash during a commit is ignored, and the
+     * complete records before it are replayed.
+     */
+    @Test
+    public void testPartialRecordIsIgnored() throws IOException {
+        WriteAheadLog log = open(new ArrayList<>());
+        log.append(WriteAheadLog.LAST_SEEN, new UUID(1, 1), 1);
+        log.append(WriteAheadLog.LAST_SEEN, new UUID(2, 2), 2);
+        log.close();
+        File[] segments = _folder.listFiles((dir, name) -> name.startsWith("wal."));
+        assertEquals(1, segments.length);
+        try (RandomAccessFile raf = new RandomAccessFile(segments[0], "rw")) {
+            raf.setLength(raf.length() - 3);
+        }
+
+        List<String> records = new ArrayList<>();
+        open(records).close();
+        assertEquals(Arrays.asList("1 1 1 1"), records);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Replay the log in the temporary folder and start it.
+     *
+     * @param records receives each replayed record as "kind msb lsb value".
+     * @return the log.
+     */
+    protected WriteAheadLog open(List<String> records) {
+        WriteAheadLog log = new WriteAheadLog(_folder, 10, 4096);
+        log.replay((kind, msb, lsb, value) -> records.add(kind + " " + msb + " " + lsb + " " + value));
+        log.start();
+        return log;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * The temporary folder.
+     */
+    protected File _folder;
+}